@@ -0,0 +1,73 @@
+package com.tomersch.mp3playerai.ai;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * On-device micro-benchmark of ProjectionKernel against a naive mat-vec, using the real
+ * audio PCA matrix (memory-mapped). Results go to logcat (tag ProjectionBench).
+ */
+@RunWith(AndroidJUnit4.class)
+public class ProjectionKernelBenchmark {
+    private static final String TAG = "ProjectionBench";
+    private static final int BATCH = 256;
+    private static final int WARMUP = 3;
+    private static final int RUNS = 10;
+
+    @Test
+    public void blockedKernelMatchesNaiveAndReportsTiming() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        NpyFile npy = NpyFile.fromAsset(context, PcaProjector.AUDIO_COMPONENTS_ASSET);
+        FloatBuffer m = npy.view();
+        int rows = npy.rows, cols = npy.cols;
+
+        Random rng = new Random(7);
+        float[] x = new float[BATCH * cols];
+        for (int i = 0; i < x.length; i++) x[i] = (float) rng.nextGaussian();
+        float[] blocked = new float[BATCH * rows];
+        float[] naive = new float[BATCH * rows];
+
+        for (int i = 0; i < WARMUP; i++) {
+            ProjectionKernel.projectBatch(m, rows, cols, x, BATCH, blocked);
+            naive(m, rows, cols, x, BATCH, naive);
+        }
+
+        long blockedNs = 0, naiveNs = 0;
+        for (int i = 0; i < RUNS; i++) {
+            long t0 = System.nanoTime();
+            ProjectionKernel.projectBatch(m, rows, cols, x, BATCH, blocked);
+            long t1 = System.nanoTime();
+            naive(m, rows, cols, x, BATCH, naive);
+            naiveNs += System.nanoTime() - t1;
+            blockedNs += t1 - t0;
+        }
+
+        for (int i = 0; i < blocked.length; i++) {
+            assertEquals(naive[i], blocked[i], 1e-3f * Math.max(1f, Math.abs(naive[i])));
+        }
+
+        Log.d(TAG, rows + "x" + cols + " batch " + BATCH +
+                ": blocked " + (blockedNs / RUNS / 1000) + "us, naive " + (naiveNs / RUNS / 1000) + "us");
+    }
+
+    private static void naive(FloatBuffer m, int rows, int cols, float[] x, int batch, float[] y) {
+        for (int b = 0; b < batch; b++) {
+            for (int r = 0; r < rows; r++) {
+                float sum = 0f;
+                for (int c = 0; c < cols; c++) sum += m.get(r * cols + c) * x[b * cols + c];
+                y[b * rows + r] = sum;
+            }
+        }
+    }
+}
@@ -1,10 +1,14 @@
 #include <jni.h>
 #include <android/log.h>
 
+#include <algorithm>
+#include <chrono>
+#include <functional>
 #include <string>
 #include <vector>
 #include <cstring>
 #include <cstdlib>
+#include <cstdio>
 
 #include "llama.h"
 
@@ -57,13 +61,19 @@ static int tokenize_compat(const llama_model * model,
 #endif
 }
 
-// Clear KV cache (your build errors show llama_kv_cache_clear is not available)
-// Use seq removal, which exists in modern llama.cpp.
+// KV cache edits go through the llama_memory API (llama_kv_cache_* / llama_kv_self_* were removed)
 static void kv_clear(llama_context * ctx) {
-    // Remove all sequences (seq_id = -1) and all positions
-    // Most modern signatures: llama_kv_cache_seq_rm(ctx, seq_id, p0, p1)
-    // Using -1 for "all"
-    //llama_kv_cache_seq_rm(ctx, 0, -1, -1);
+    llama_memory_clear(llama_get_memory(ctx), true);
+}
+
+// Drop positions [p0, end) of sequence 0, keeping the prefix before p0
+static bool kv_truncate(llama_context * ctx, int p0) {
+    return llama_memory_seq_rm(llama_get_memory(ctx), 0, p0, -1);
+}
+
+static int64_t now_us() {
+    return std::chrono::duration_cast<std::chrono::microseconds>(
+            std::chrono::steady_clock::now().time_since_epoch()).count();
 }
 
 // Build a batch from tokens with proper positions
@@ -79,30 +89,282 @@ static llama_batch make_batch(const std::vector<llama_token> & tokens, int n_pas
         batch.logits[i]   = false;
     }
 
+    // llama_batch_init only allocates: n_tokens is ours to set
+    batch.n_tokens = (int)tokens.size();
+
     // We only need logits for the last token
     batch.logits[batch.n_tokens - 1] = 1;
     return batch;
 }
 
+// Append one token to a batch allocated with llama_batch_init(capacity, 0, 1)
+static void batch_add(llama_batch & batch, llama_token tok, int pos, llama_seq_id seq, bool logits) {
+    const int i = batch.n_tokens++;
+    batch.token[i]     = tok;
+    batch.pos[i]       = pos;
+    batch.n_seq_id[i]  = 1;
+    batch.seq_id[i][0] = seq;
+    batch.logits[i]    = logits;
+}
+
 struct LlamaHandle {
     llama_model   * model = nullptr;
     llama_context * ctx   = nullptr;
+
+    // Tokens whose KV entries are currently in sequence 0 (prompt + generated, in order).
+    // A new prompt sharing a prefix with them only decodes the part after the shared prefix.
+    std::vector<llama_token> kv_tokens;
+
+    int last_n_generated = 0;   // tokens sampled by the last generateText call
+
+    // Context settings, for getStats
+    ggml_type type_k = GGML_TYPE_F16;
+    ggml_type type_v = GGML_TYPE_F16;
+    bool flash_attn = false;
+};
+
+// Tracks JSON nesting over generated text, ignoring braces inside strings.
+// complete() once the first top-level object is closed.
+struct JsonDepth {
+    int  depth     = 0;
+    bool started   = false;
+    bool in_string = false;
+    bool escaped   = false;
+
+    void feed(const char * s, int n) {
+        for (int i = 0; i < n; i++) {
+            const char c = s[i];
+            if (in_string) {
+                if (escaped)        escaped = false;
+                else if (c == '\\') escaped = true;
+                else if (c == '"')  in_string = false;
+            } else if (c == '"' && started) {
+                in_string = true;
+            } else if (c == '{' || c == '[') {
+                depth++;
+                started = true;
+            } else if ((c == '}' || c == ']') && started) {
+                depth--;
+            }
+        }
+    }
+
+    bool complete() const { return started && depth <= 0; }
 };
 
+static std::vector<llama_token> tokenize_prompt(const llama_model * model, JNIEnv * env, jstring text) {
+    const char * text_c = env->GetStringUTFChars(text, nullptr);
+    const int text_len = (int)std::strlen(text_c);
+
+    std::vector<llama_token> tokens(text_len + 256);
+    int n_tok = tokenize_compat(model, text_c, text_len, tokens.data(), (int)tokens.size(), true, false);
+    env->ReleaseStringUTFChars(text, text_c);
+
+    tokens.resize(n_tok > 0 ? n_tok : 0);
+    return tokens;
+}
+
+// Bring sequence 0 to exactly `tokens`: keep the longest prefix already in the KV cache,
+// drop the rest and decode only the new tail. Returns false on decode failure (cache cleared).
+// At least one token is always decoded so the last position has fresh logits.
+static bool eval_prompt(LlamaHandle * h, const std::vector<llama_token> & tokens) {
+    size_t keep = 0;
+    const size_t max_keep = std::min(h->kv_tokens.size(), tokens.size() - 1);
+    while (keep < max_keep && h->kv_tokens[keep] == tokens[keep]) keep++;
+
+    if (!kv_truncate(h->ctx, (int)keep)) {
+        // Partial removal unsupported by this memory type: start over
+        kv_clear(h->ctx);
+        keep = 0;
+    }
+    h->kv_tokens.resize(keep);
+
+    std::vector<llama_token> tail(tokens.begin() + keep, tokens.end());
+    const int64_t t0 = now_us();
+    llama_batch batch = make_batch(tail, (int)keep);
+    const int rc = llama_decode(h->ctx, batch);
+    llama_batch_free(batch);
+
+    if (rc != 0) {
+        kv_clear(h->ctx);
+        h->kv_tokens.clear();
+        return false;
+    }
+
+    h->kv_tokens.insert(h->kv_tokens.end(), tail.begin(), tail.end());
+    LOGD("prompt: %d tokens, %d reused from KV cache, %d evaluated in %lld ms",
+         (int)tokens.size(), (int)keep, (int)tail.size(), (long long)((now_us() - t0) / 1000));
+    return true;
+}
+
+// Sampler chain: [grammar] -> temperature -> top-p -> dist. grammar may be null.
+static llama_sampler * make_sampler(JNIEnv * env, const llama_model * model, jstring grammar, float temperature) {
+    llama_sampler_chain_params chain_params = llama_sampler_chain_default_params();
+    llama_sampler * sampler = llama_sampler_chain_init(chain_params);
+
+    // Grammar first: masks every token that would break the schema, before temperature / top-p
+    if (grammar != nullptr) {
+        const char * grammar_c = env->GetStringUTFChars(grammar, nullptr);
+        llama_sampler * g = llama_sampler_init_grammar(get_vocab(model), grammar_c, "root");
+        env->ReleaseStringUTFChars(grammar, grammar_c);
+        if (g) {
+            llama_sampler_chain_add(sampler, g);
+        } else {
+            LOGE("grammar failed to parse, sampling without it");
+        }
+    }
+
+    llama_sampler_chain_add(sampler, llama_sampler_init_temp(temperature));
+    llama_sampler_chain_add(sampler, llama_sampler_init_top_p(0.95f, 1));
+    llama_sampler_chain_add(sampler, llama_sampler_init_dist(1234));
+    return sampler;
+}
+
+// Shared generation loop. on_piece (optional) gets every token piece; returning false cancels.
+// Returns the generated text ("" on error).
+static std::string generate(JNIEnv * env,
+                            LlamaHandle * handle,
+                            jstring prompt,
+                            jstring grammar,
+                            float temperature,
+                            int maxTokens,
+                            const std::function<bool(const char *, int)> & on_piece) {
+    std::string out;
+    llama_context * ctx = handle->ctx;
+    llama_model   * model = handle->model;
+
+    std::vector<llama_token> tokens = tokenize_prompt(model, env, prompt);
+    if (tokens.empty()) {
+        LOGE("tokenize failed");
+        return out;
+    }
+    if ((int)tokens.size() + (int)maxTokens > (int)llama_n_ctx(ctx)) {
+        LOGE("prompt (%d tokens) + maxTokens (%d) exceed n_ctx (%d)",
+             (int)tokens.size(), (int)maxTokens, (int)llama_n_ctx(ctx));
+        return out;
+    }
+
+    // Decode only what differs from the previous call (the fixed instructions stay cached)
+    if (!eval_prompt(handle, tokens)) {
+        LOGE("llama_decode prompt failed");
+        return out;
+    }
+    int n_past = (int)tokens.size();
+
+    llama_sampler * sampler = make_sampler(env, model, grammar, temperature);
+
+    out.reserve((size_t)maxTokens * 4);
+    JsonDepth json;
+    int n_generated = 0;
+    const int64_t t_gen = now_us();
+
+    // Generate
+    for (int i = 0; i < (int)maxTokens; i++) {
+        // Sample from last logits (we set logits flag on last token each decode).
+        // llama_sampler_sample also accepts tok into the chain: accepting it again would
+        // advance the grammar twice and reject valid output
+        llama_token tok = llama_sampler_sample(sampler, ctx, -1);
+        n_generated++;
+
+        if (llama_vocab_is_eog(get_vocab(model), tok)) {
+            break;
+        }
+
+        char piece[512];
+        int n_chars = token_to_piece_compat(model, tok, piece, (int)sizeof(piece));
+        if (n_chars > 0) {
+            out.append(piece, (size_t)n_chars);
+            json.feed(piece, n_chars);
+        }
+
+        // Streaming caller saw enough: skip decoding this token
+        if (on_piece && n_chars > 0 && !on_piece(piece, n_chars)) {
+            LOGD("generation cancelled by caller after %d tokens", n_generated);
+            break;
+        }
+
+        // Stop once the top-level JSON object is closed (nested "moods" braces don't count)
+        if (json.complete()) {
+            break;
+        }
+
+        // Decode next token
+        std::vector<llama_token> one = { tok };
+        llama_batch b2 = make_batch(one, n_past);
+
+        if (llama_decode(ctx, b2) != 0) {
+            llama_batch_free(b2);
+            LOGE("llama_decode token failed");
+            // KV contents are uncertain now: next call starts from scratch
+            kv_clear(ctx);
+            handle->kv_tokens.clear();
+            break;
+        }
+
+        llama_batch_free(b2);
+        handle->kv_tokens.push_back(tok);
+        n_past += 1;
+    }
+
+    llama_sampler_free(sampler);
+
+    handle->last_n_generated = n_generated;
+    LOGD("generated %d tokens in %lld ms%s", n_generated,
+         (long long)((now_us() - t_gen) / 1000), grammar != nullptr ? " (grammar)" : "");
+
+    return out;
+}
+
+// Length of the longest prefix of s that ends on a complete UTF-8 sequence
+// (token pieces can split a multi-byte character; NewStringUTF must not see half of one)
+static size_t utf8_complete_prefix(const std::string & s) {
+    size_t i = s.size();
+    size_t back = 0;
+    while (i > 0 && back < 4) {
+        const unsigned char c = (unsigned char)s[i - 1];
+        if ((c & 0xC0) != 0x80) {
+            // Lead byte: does it have all its continuation bytes?
+            const size_t need = c < 0x80 ? 1 : (c >> 5) == 0x6 ? 2 : (c >> 4) == 0xE ? 3 : 4;
+            return back + 1 >= need ? s.size() : i - 1;
+        }
+        i--;
+        back++;
+    }
+    return s.size();
+}
+
 extern "C" {
 
-// JNI: long initLlama(String modelPath, int nCtx, int nThreads)
+// KV cache element type chosen from Java (LocalLlmInterpreter.KV_*)
+static ggml_type kv_type_from_java(int t) {
+    switch (t) {
+        case 1:  return GGML_TYPE_Q8_0;
+        case 2:  return GGML_TYPE_Q4_0;
+        default: return GGML_TYPE_F16;
+    }
+}
+
+// JNI: long initLlama(String modelPath, int nCtx, int nSeqMax, int nThreads, int nThreadsBatch, int kvType,
+//                     boolean flashAttn)
+// nSeqMax: sequences (seq 0 = cached prompt prefix, 1.. = generateBatch slots) sharing one unified n_ctx
+// nThreads: single-token generation, nThreadsBatch: prompt evaluation
+// kvType: 0 = f16, 1 = q8_0, 2 = q4_0. A quantized V cache needs flash attention: without it only K is quantized.
 JNIEXPORT jlong JNICALL
 Java_com_tomersch_mp3playerai_ai_LocalLlmInterpreter_initLlama(
         JNIEnv *env,
         jobject /* this */,
         jstring modelPath,
         jint nCtx,
-        jint nThreads) {
+        jint nSeqMax,
+        jint nThreads,
+        jint nThreadsBatch,
+        jint kvType,
+        jboolean flashAttn) {
 
     const char * model_path = env->GetStringUTFChars(modelPath, nullptr);
 
-    LOGD("initLlama: model=%s nCtx=%d nThreads=%d", model_path, (int)nCtx, (int)nThreads);
+    LOGD("initLlama: model=%s nCtx=%d nSeqMax=%d nThreads=%d nThreadsBatch=%d kvType=%d flashAttn=%d",
+         model_path, (int)nCtx, (int)nSeqMax, (int)nThreads, (int)nThreadsBatch, (int)kvType, (int)flashAttn);
 
     llama_backend_init();
 
@@ -119,8 +381,15 @@ Java_com_tomersch_mp3playerai_ai_LocalLlmInterpreter_initLlama(
 
     llama_context_params cparams = llama_context_default_params();
     cparams.n_ctx = (uint32_t)nCtx;
+    cparams.n_seq_max = (uint32_t)std::max(1, (int)nSeqMax);
+    cparams.kv_unified = true;   // one cell pool: batch slots share seq 0's prefix cells instead of copies
     cparams.n_threads = (int)nThreads;
-    cparams.n_threads_batch = (int)nThreads;
+    cparams.n_threads_batch = (int)nThreadsBatch;
+    cparams.n_batch = (uint32_t)nCtx;   // the whole prompt fits one decode
+    cparams.n_ubatch = std::min<uint32_t>(512, (uint32_t)nCtx);
+    cparams.flash_attn_type = flashAttn ? LLAMA_FLASH_ATTN_TYPE_ENABLED : LLAMA_FLASH_ATTN_TYPE_DISABLED;
+    cparams.type_k = kv_type_from_java((int)kvType);
+    cparams.type_v = flashAttn ? cparams.type_k : GGML_TYPE_F16;
 
     // Modern API replacement for deprecated llama_new_context_with_model
     llama_context * ctx = llama_init_from_model(model, cparams);
@@ -133,19 +402,24 @@ Java_com_tomersch_mp3playerai_ai_LocalLlmInterpreter_initLlama(
     auto * handle = new LlamaHandle();
     handle->model = model;
     handle->ctx = ctx;
+    handle->type_k = cparams.type_k;
+    handle->type_v = cparams.type_v;
+    handle->flash_attn = flashAttn == JNI_TRUE;
 
     LOGD("initLlama OK: handle=%p ctx=%p model=%p", handle, ctx, model);
     return reinterpret_cast<jlong>(handle);
 }
 
 
-// JNI: String generateText(long handlePtr, String prompt, float temperature, int maxTokens)
+// JNI: String generateText(long handlePtr, String prompt, String grammar, float temperature, int maxTokens)
+// grammar: optional GBNF (root rule "root"); null = free sampling
 JNIEXPORT jstring JNICALL
 Java_com_tomersch_mp3playerai_ai_LocalLlmInterpreter_generateText(
         JNIEnv *env,
         jobject /* this */,
         jlong handlePtr,
         jstring prompt,
+        jstring grammar,
         jfloat temperature,
         jint maxTokens) {
 
@@ -155,92 +429,361 @@ Java_com_tomersch_mp3playerai_ai_LocalLlmInterpreter_generateText(
         return env->NewStringUTF("");
     }
 
-    llama_context * ctx = handle->ctx;
-    llama_model   * model = handle->model;
+    std::string out = generate(env, handle, prompt, grammar, (float)temperature, (int)maxTokens, nullptr);
+    return env->NewStringUTF(out.c_str());
+}
 
-    const char * prompt_c = env->GetStringUTFChars(prompt, nullptr);
-    const int prompt_len = (int)std::strlen(prompt_c);
 
-    // Tokenize
-    std::vector<llama_token> tokens(prompt_len + 256);
-    int n_tok = tokenize_compat(model, prompt_c, prompt_len, tokens.data(), (int)tokens.size(), true, false);
-    env->ReleaseStringUTFChars(prompt, prompt_c);
+// JNI: String generateStream(long handlePtr, String prompt, String grammar, float temperature, int maxTokens,
+//                            TokenListener listener)
+// Like generateText, but calls listener.onToken(piece) as tokens arrive; onToken returning false
+// (or throwing) stops generation. Returns the full text generated up to that point.
+JNIEXPORT jstring JNICALL
+Java_com_tomersch_mp3playerai_ai_LocalLlmInterpreter_generateStream(
+        JNIEnv *env,
+        jobject /* this */,
+        jlong handlePtr,
+        jstring prompt,
+        jstring grammar,
+        jfloat temperature,
+        jint maxTokens,
+        jobject listener) {
 
-    if (n_tok <= 0) {
-        LOGE("tokenize failed");
+    auto * handle = reinterpret_cast<LlamaHandle*>(handlePtr);
+    if (!handle || !handle->ctx || !handle->model || !listener) {
+        LOGE("generateStream: invalid handle or listener");
         return env->NewStringUTF("");
     }
-    tokens.resize(n_tok);
 
-    // Reset KV for a fresh single-seq run
-    kv_clear(ctx);
-
-    // Decode prompt
-    int n_past = 0;
-    llama_batch batch = make_batch(tokens, n_past);
-    if (llama_decode(ctx, batch) != 0) {
-        llama_batch_free(batch);
-        LOGE("llama_decode prompt failed");
+    jclass cls = env->GetObjectClass(listener);
+    jmethodID on_token = env->GetMethodID(cls, "onToken", "(Ljava/lang/String;)Z");
+    env->DeleteLocalRef(cls);
+    if (!on_token) {
+        LOGE("generateStream: listener has no onToken(String)");
         return env->NewStringUTF("");
     }
-    llama_batch_free(batch);
-    n_past += (int)tokens.size();
 
-    // Sampler (modern chain)
-    llama_sampler_chain_params chain_params = llama_sampler_chain_default_params();
-    llama_sampler * sampler = llama_sampler_chain_init(chain_params);
+    std::string pending;   // bytes of a character split across tokens
+    auto on_piece = [&](const char * piece, int n) -> bool {
+        pending.append(piece, (size_t)n);
+        const size_t ready = utf8_complete_prefix(pending);
+        if (ready == 0) return true;
 
-    llama_sampler_chain_add(sampler, llama_sampler_init_temp((float)temperature));
-    llama_sampler_chain_add(sampler, llama_sampler_init_top_p(0.95f, 1));
-    llama_sampler_chain_add(sampler, llama_sampler_init_dist(1234));
+        jstring jpiece = env->NewStringUTF(pending.substr(0, ready).c_str());
+        pending.erase(0, ready);
+        const jboolean keep_going = env->CallBooleanMethod(listener, on_token, jpiece);
+        env->DeleteLocalRef(jpiece);
 
-    std::string out;
-    out.reserve((size_t)maxTokens * 4);
+        if (env->ExceptionCheck()) {
+            // Leave the exception pending: it is rethrown in Java when we return
+            return false;
+        }
+        return keep_going == JNI_TRUE;
+    };
 
-    // Generate
-    for (int i = 0; i < (int)maxTokens; i++) {
-        // Sample from last logits (we set logits flag on last token each decode)
-        llama_token tok = llama_sampler_sample(sampler, ctx, -1);
+    std::string out = generate(env, handle, prompt, grammar, (float)temperature, (int)maxTokens, on_piece);
+    if (env->ExceptionCheck()) return nullptr;
+    return env->NewStringUTF(out.c_str());
+}
 
-        if (llama_vocab_is_eog(get_vocab(model), tok)) {
-            break;
+
+// JNI: String[] generateBatch(long handlePtr, String[] prompts, String grammar, float temperature, int maxTokens)
+// Generates independent answers for several prompts in lockstep: every llama_decode carries one
+// token per active sequence, so N answers cost about as many decode calls as one.
+// Each prompt gets sequence i + 1. The prefix all prompts share with seq 0's cache is not
+// recomputed: seq 0's cells are shared into every slot (llama_memory_seq_cp on a unified cache).
+// Requires prompts.length < n_seq_max. Per-answer stops as in generateText; no streaming.
+JNIEXPORT jobjectArray JNICALL
+Java_com_tomersch_mp3playerai_ai_LocalLlmInterpreter_generateBatch(
+        JNIEnv *env,
+        jobject /* this */,
+        jlong handlePtr,
+        jobjectArray prompts,
+        jstring grammar,
+        jfloat temperature,
+        jint maxTokens) {
+
+    auto * handle = reinterpret_cast<LlamaHandle*>(handlePtr);
+    if (!handle || !handle->ctx || !handle->model || !prompts) {
+        LOGE("generateBatch: invalid handle");
+        return nullptr;
+    }
+
+    llama_context * ctx = handle->ctx;
+    llama_model * model = handle->model;
+    llama_memory_t mem = llama_get_memory(ctx);
+    const int n = env->GetArrayLength(prompts);
+    if (n <= 0 || n >= (int)llama_n_seq_max(ctx)) {
+        LOGE("generateBatch: %d prompts, n_seq_max %d", n, (int)llama_n_seq_max(ctx));
+        return nullptr;
+    }
+
+    // Tokenize; the part every prompt shares with seq 0 stays cached
+    std::vector<std::vector<llama_token>> tokens((size_t)n);
+    size_t keep = handle->kv_tokens.size();
+    for (int i = 0; i < n; i++) {
+        auto prompt = (jstring)env->GetObjectArrayElement(prompts, i);
+        tokens[i] = tokenize_prompt(model, env, prompt);
+        env->DeleteLocalRef(prompt);
+        if (tokens[i].empty()) {
+            LOGE("generateBatch: tokenize failed");
+            return nullptr;
         }
+        size_t common = 0;
+        const size_t max_common = std::min(handle->kv_tokens.size(), tokens[i].size() - 1);
+        while (common < max_common && handle->kv_tokens[common] == tokens[i][common]) common++;
+        keep = std::min(keep, common);
+    }
 
-        char piece[512];
-        int n_chars = token_to_piece_compat(model, tok, piece, (int)sizeof(piece));
-        if (n_chars > 0) {
-            out.append(piece, (size_t)n_chars);
+    size_t n_tokens_total = 0;
+    for (const auto & t : tokens) n_tokens_total += t.size() - keep + (size_t)maxTokens;
+    if (keep + n_tokens_total > llama_n_ctx(ctx)) {
+        LOGE("generateBatch: %zu cached + %zu new tokens exceed n_ctx %d",
+             keep, n_tokens_total, (int)llama_n_ctx(ctx));
+        return nullptr;
+    }
+
+    if (!kv_truncate(ctx, (int)keep)) {
+        kv_clear(ctx);
+        keep = 0;
+    }
+    handle->kv_tokens.resize(keep);
+
+    // Prompt tails of all sequences in one batch, logits on each sequence's last token
+    size_t tail_total = 0;
+    for (const auto & t : tokens) tail_total += t.size() - keep;
+    llama_batch batch = llama_batch_init((int)std::max(tail_total, (size_t)n), 0, 1);
+
+    std::vector<int> logit_idx((size_t)n);
+    std::vector<int> n_past((size_t)n);
+    for (int i = 0; i < n; i++) {
+        const llama_seq_id seq = i + 1;
+        llama_memory_seq_rm(mem, seq, -1, -1);
+        if (keep > 0) llama_memory_seq_cp(mem, 0, seq, -1, -1);
+
+        for (size_t j = keep; j < tokens[i].size(); j++) {
+            batch_add(batch, tokens[i][j], (int)j, seq, j + 1 == tokens[i].size());
         }
+        logit_idx[i] = batch.n_tokens - 1;
+        n_past[i] = (int)tokens[i].size();
+    }
 
-        // Early stop if we detect a complete JSON object
-        // (Your use case: query parsing / tags)
-        size_t open = out.find('{');
-        size_t close = out.find('}');
-        if (open != std::string::npos && close != std::string::npos && close > open) {
-            // Stop at first complete object (you can tighten this later)
-            break;
+    const int64_t t0 = now_us();
+    std::vector<std::string> out((size_t)n);
+    std::vector<llama_sampler *> samplers((size_t)n);
+    std::vector<JsonDepth> json((size_t)n);
+    std::vector<bool> active((size_t)n, true);
+    int n_generated = 0;
+    int n_decodes = 0;
+
+    bool ok = llama_decode(ctx, batch) == 0;
+    if (!ok) LOGE("generateBatch: prompt decode failed");
+    for (int i = 0; i < n; i++) samplers[i] = make_sampler(env, model, grammar, (float)temperature);
+
+    for (int step = 0; ok && step < (int)maxTokens; step++) {
+        // Sample one token per active sequence from its logits in the previous decode
+        std::vector<llama_token> next((size_t)n, -1);
+        for (int i = 0; i < n; i++) {
+            if (!active[i]) continue;
+            // Also accepts tok into this sequence's grammar (see generate)
+            const llama_token tok = llama_sampler_sample(samplers[i], ctx, logit_idx[i]);
+            n_generated++;
+
+            if (llama_vocab_is_eog(get_vocab(model), tok)) {
+                active[i] = false;
+                continue;
+            }
+            char piece[512];
+            const int n_chars = token_to_piece_compat(model, tok, piece, (int)sizeof(piece));
+            if (n_chars > 0) {
+                out[i].append(piece, (size_t)n_chars);
+                json[i].feed(piece, n_chars);
+            }
+            if (json[i].complete()) {
+                active[i] = false;
+                continue;
+            }
+            next[i] = tok;
         }
 
-        // Accept token into sampler state (modern accept includes ctx)
-        llama_sampler_accept(sampler, tok);
+        // One decode advances every sequence still generating
+        batch.n_tokens = 0;
+        for (int i = 0; i < n; i++) {
+            if (next[i] < 0) continue;
+            logit_idx[i] = batch.n_tokens;
+            batch_add(batch, next[i], n_past[i]++, i + 1, true);
+        }
+        if (batch.n_tokens == 0) break;
+        if (llama_decode(ctx, batch) != 0) {
+            LOGE("generateBatch: decode failed");
+            ok = false;
+        }
+        n_decodes++;
+    }
 
-        // Decode next token
-        std::vector<llama_token> one = { tok };
-        llama_batch b2 = make_batch(one, n_past);
+    for (auto * smpl : samplers) if (smpl) llama_sampler_free(smpl);
+    llama_batch_free(batch);
 
-        if (llama_decode(ctx, b2) != 0) {
-            llama_batch_free(b2);
-            LOGE("llama_decode token failed");
-            break;
+    // Slots are per-call: drop them, seq 0 keeps the shared prefix for the next request
+    for (int i = 0; i < n; i++) llama_memory_seq_rm(mem, i + 1, -1, -1);
+    if (!ok) {
+        kv_clear(ctx);
+        handle->kv_tokens.clear();
+    }
+
+    handle->last_n_generated = n_generated;
+    LOGD("generateBatch: %d prompts (%zu prefix tokens shared), %d tokens in %d decodes, %lld ms",
+         n, keep, n_generated, n_decodes, (long long)((now_us() - t0) / 1000));
+
+    jobjectArray result = env->NewObjectArray(n, env->FindClass("java/lang/String"), nullptr);
+    for (int i = 0; i < n; i++) {
+        jstring s_i = env->NewStringUTF(ok ? out[i].c_str() : "");
+        env->SetObjectArrayElement(result, i, s_i);
+        env->DeleteLocalRef(s_i);
+    }
+    return result;
+}
+
+
+// JNI: boolean warmPrompt(long handlePtr, String prefix)
+// Evaluate a fixed prompt prefix once, so later generateText calls starting with it reuse its KV.
+JNIEXPORT jboolean JNICALL
+Java_com_tomersch_mp3playerai_ai_LocalLlmInterpreter_warmPrompt(
+        JNIEnv *env,
+        jobject /* this */,
+        jlong handlePtr,
+        jstring prefix) {
+
+    auto * handle = reinterpret_cast<LlamaHandle*>(handlePtr);
+    if (!handle || !handle->ctx || !handle->model) {
+        LOGE("warmPrompt: invalid handle");
+        return JNI_FALSE;
+    }
+
+    std::vector<llama_token> tokens = tokenize_prompt(handle->model, env, prefix);
+    if (tokens.size() < 2 || (int)tokens.size() >= (int)llama_n_ctx(handle->ctx)) {
+        LOGE("warmPrompt: bad prefix length %d", (int)tokens.size());
+        return JNI_FALSE;
+    }
+    return eval_prompt(handle, tokens) ? JNI_TRUE : JNI_FALSE;
+}
+
+
+// JNI: void setThreads(long handlePtr, int nThreads, int nThreadsBatch)
+JNIEXPORT void JNICALL
+Java_com_tomersch_mp3playerai_ai_LocalLlmInterpreter_setThreads(
+        JNIEnv *env,
+        jobject /* this */,
+        jlong handlePtr,
+        jint nThreads,
+        jint nThreadsBatch) {
+
+    auto * handle = reinterpret_cast<LlamaHandle*>(handlePtr);
+    if (!handle || !handle->ctx) return;
+    llama_set_n_threads(handle->ctx, (int)nThreads, (int)nThreadsBatch);
+    LOGD("threads: %d generation, %d batch", (int)nThreads, (int)nThreadsBatch);
+}
+
+
+// JNI: long[] benchmarkThreads(long handlePtr, int nThreads, int nPrompt, int nGen)
+// Times a nPrompt-token batch decode and nGen single-token decodes with nThreads threads.
+// Returns {promptUs, genUs}, or null on failure. Leaves the KV cache empty and the
+// thread settings changed: the caller re-applies its choice with setThreads.
+JNIEXPORT jlongArray JNICALL
+Java_com_tomersch_mp3playerai_ai_LocalLlmInterpreter_benchmarkThreads(
+        JNIEnv *env,
+        jobject /* this */,
+        jlong handlePtr,
+        jint nThreads,
+        jint nPrompt,
+        jint nGen) {
+
+    auto * handle = reinterpret_cast<LlamaHandle*>(handlePtr);
+    if (!handle || !handle->ctx || !handle->model) return nullptr;
+    if ((int)(nPrompt + nGen) > (int)llama_n_ctx(handle->ctx)) return nullptr;
+
+    llama_context * ctx = handle->ctx;
+    llama_set_n_threads(ctx, (int)nThreads, (int)nThreads);
+
+    // Content does not matter for timing: any valid token ids
+    const int n_vocab = llama_vocab_n_tokens(get_vocab(handle->model));
+    std::vector<llama_token> prompt((size_t)nPrompt);
+    for (int i = 0; i < (int)nPrompt; i++) prompt[i] = (llama_token)((100 + i * 7) % n_vocab);
+
+    kv_clear(ctx);
+    handle->kv_tokens.clear();
+
+    int64_t t0 = now_us();
+    llama_batch batch = make_batch(prompt, 0);
+    int rc = llama_decode(ctx, batch);
+    llama_batch_free(batch);
+    const int64_t prompt_us = now_us() - t0;
+
+    int64_t gen_us = 0;
+    if (rc == 0) {
+        t0 = now_us();
+        for (int i = 0; i < (int)nGen && rc == 0; i++) {
+            std::vector<llama_token> one = { prompt[i % prompt.size()] };
+            llama_batch b = make_batch(one, (int)nPrompt + i);
+            rc = llama_decode(ctx, b);
+            llama_batch_free(b);
         }
+        gen_us = now_us() - t0;
+    }
 
-        llama_batch_free(b2);
-        n_past += 1;
+    kv_clear(ctx);
+    if (rc != 0) {
+        LOGE("benchmarkThreads: decode failed");
+        return nullptr;
     }
 
-    llama_sampler_free(sampler);
+    jlong out[2] = { (jlong)prompt_us, (jlong)gen_us };
+    jlongArray arr = env->NewLongArray(2);
+    env->SetLongArrayRegion(arr, 0, 2, out);
+    return arr;
+}
 
-    return env->NewStringUTF(out.c_str());
+
+// JNI: String getStats(long handlePtr)
+// Context size and KV cache memory: n_ctx * n_layer * (K + V row size). Computed from the
+// hyperparameters, so it is the allocated size (the cache is allocated up front), not usage.
+JNIEXPORT jstring JNICALL
+Java_com_tomersch_mp3playerai_ai_LocalLlmInterpreter_getStats(
+        JNIEnv *env,
+        jobject /* this */,
+        jlong handlePtr) {
+
+    auto * handle = reinterpret_cast<LlamaHandle*>(handlePtr);
+    if (!handle || !handle->ctx || !handle->model) return env->NewStringUTF("not loaded");
+
+    const llama_model * model = handle->model;
+    const int64_t n_ctx = llama_n_ctx(handle->ctx);
+    const int64_t n_layer = llama_model_n_layer(model);
+    const int64_t n_head = llama_model_n_head(model);
+    const int64_t n_head_kv = llama_model_n_head_kv(model);
+    const int64_t n_embd_kv = n_head > 0 ? llama_model_n_embd(model) / n_head * n_head_kv : llama_model_n_embd(model);
+
+    const double k_row = (double)ggml_row_size(handle->type_k, n_embd_kv);
+    const double v_row = (double)ggml_row_size(handle->type_v, n_embd_kv);
+    const double kv_mb = (double)n_ctx * (double)n_layer * (k_row + v_row) / (1024.0 * 1024.0);
+
+    char buf[256];
+    snprintf(buf, sizeof(buf), "n_ctx=%lld, KV %.1f MB (K %s, V %s), flash attention %s, model %.0f MB",
+             (long long)n_ctx, kv_mb, ggml_type_name(handle->type_k), ggml_type_name(handle->type_v),
+             handle->flash_attn ? "on" : "off", (double)llama_model_size(model) / (1024.0 * 1024.0));
+    return env->NewStringUTF(buf);
+}
+
+
+// JNI: int getLastTokenCount(long handlePtr)
+JNIEXPORT jint JNICALL
+Java_com_tomersch_mp3playerai_ai_LocalLlmInterpreter_getLastTokenCount(
+        JNIEnv *env,
+        jobject /* this */,
+        jlong handlePtr) {
+
+    auto * handle = reinterpret_cast<LlamaHandle*>(handlePtr);
+    return handle ? handle->last_n_generated : 0;
 }
 
 
@@ -0,0 +1,31 @@
+package com.tomersch.mp3playerai;
+
+import android.app.Application;
+
+import com.tomersch.mp3playerai.ai.AIEngineProvider;
+import com.tomersch.mp3playerai.ai.AIRecommendationEngine;
+
+/**
+ * Starts the shared AI engine in the background as soon as the process starts.
+ */
+public class Mp3PlayerApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        AIEngineProvider.get(this);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        // Process may be killed soon: persist buffered learning events, and give back the
+        // LLM's native memory under pressure (reloaded on the next query that needs it)
+        AIRecommendationEngine engine = AIEngineProvider.getIfReady();
+        if (engine != null) {
+            engine.getLearningManager().flush();
+            engine.getLlmManager().onTrimMemory(level);
+        }
+    }
+}
@@ -19,7 +19,9 @@ import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.tomersch.mp3playerai.R;
+import com.tomersch.mp3playerai.ai.AIEngineProvider;
 import com.tomersch.mp3playerai.ai.AILearningManager;
+import com.tomersch.mp3playerai.ai.AIRecommendationEngine;
 import com.tomersch.mp3playerai.ai.SongMatcher;
 import com.tomersch.mp3playerai.models.Song;
 import com.tomersch.mp3playerai.utils.LibraryRepository;
@@ -67,7 +69,7 @@ public class DevActivity extends AppCompatActivity {
         setContentView(R.layout.activity_dev);
 
         // Initialize managers
-        learningManager = new AILearningManager(this);
+        learningManager = AILearningManager.getInstance(this);
         cacheManager = new SongCacheManager(this);
         activityLogger = new UserActivityLogger(this);
         libraryRepo = LibraryRepository.getInstance(this);
@@ -200,6 +202,8 @@ public class DevActivity extends AppCompatActivity {
     private void refreshStats() {
         // AI Learning Stats
         String aiStats = learningManager.getStats();
+        AIRecommendationEngine engine = AIEngineProvider.getIfReady();
+        if (engine != null) aiStats += "\n" + engine.getQueryCacheStats() + "\n" + engine.getLlmStats();
         tvAiStats.setText(aiStats);
 
         // Cache Stats
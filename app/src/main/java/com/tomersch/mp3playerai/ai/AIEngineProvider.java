@@ -0,0 +1,90 @@
+package com.tomersch.mp3playerai.ai;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Process-wide AIRecommendationEngine.
+ *
+ * Initialization (DB copy/open, learning journal load, SongStore snapshot) runs on a background
+ * thread, started from Application.onCreate, so it never sits between app start and first playback.
+ * Consumers share the one engine and must not close it.
+ */
+public final class AIEngineProvider {
+    private static final String TAG = "AIEngineProvider";
+
+    private static final ExecutorService initExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "ai-engine-init");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static CompletableFuture<AIRecommendationEngine> future;
+
+    private AIEngineProvider() {}
+
+    /**
+     * Engine future; the first call starts initialization. A failed init is retried on the next call.
+     */
+    public static synchronized CompletableFuture<AIRecommendationEngine> get(Context context) {
+        if (future == null || future.isCompletedExceptionally()) {
+            Context app = context.getApplicationContext();
+            future = CompletableFuture.supplyAsync(() -> create(app), initExecutor);
+        }
+        return future;
+    }
+
+    /**
+     * Engine if it is ready, otherwise null. Never blocks.
+     */
+    public static AIRecommendationEngine getIfReady() {
+        CompletableFuture<AIRecommendationEngine> f;
+        synchronized (AIEngineProvider.class) {
+            f = future;
+        }
+        if (f == null || !f.isDone() || f.isCompletedExceptionally()) return null;
+        return f.join();
+    }
+
+    /**
+     * Run callback on the main thread once the engine is ready (immediately posted if it already is).
+     */
+    public static void whenReady(Context context, Consumer<AIRecommendationEngine> callback) {
+        whenReady(context, callback, e -> {});
+    }
+
+    /**
+     * whenReady; onError runs on the main thread instead if this initialization attempt fails.
+     */
+    public static void whenReady(Context context, Consumer<AIRecommendationEngine> callback,
+                                 Consumer<Throwable> onError) {
+        Handler main = new Handler(Looper.getMainLooper());
+        get(context).whenComplete((engine, error) -> main.post(() -> {
+            if (error == null) callback.accept(engine);
+            else onError.accept(error instanceof CompletionException && error.getCause() != null
+                    ? error.getCause() : error);
+        }));
+    }
+
+    private static AIRecommendationEngine create(Context app) {
+        long start = System.currentTimeMillis();
+        try {
+            AIRecommendationEngine engine = new AIRecommendationEngine(app, "");
+            engine.getSongStore(); // warm the snapshot so the first request does not pay for it
+            Log.d(TAG, "🧠 AI engine ready in " + (System.currentTimeMillis() - start) + "ms");
+            Log.d(TAG, engine.getLearningStats());
+            return engine;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "AI engine init failed", e);
+            throw e;
+        }
+    }
+}
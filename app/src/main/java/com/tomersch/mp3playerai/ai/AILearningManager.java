@@ -7,11 +7,20 @@ import android.util.Log;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Persistent learning + anti-repeat memory.
@@ -20,11 +29,27 @@ import java.util.Map;
  * - playHistory/skipHistory
  * - lastPlayedAt: time-based freshness penalty
  * - lastRecommendedAt: recommendation cooldown (prevents "same songs always")
+ * - playedSongs: ever played (novelty bonus)
+ *
+ * lastPlayedAt / lastRecommendedAt only matter inside the cooldown horizon
+ * (RecencyWindow.HORIZON_MS); older entries are evicted, so they stay bounded.
+ *
+ * Persistence is an append-only event journal + checkpoint (LearningJournal):
+ * - every record* call appends one small binary event, buffered write-behind and flushed
+ *   at most SAVE_DEBOUNCE_MS after the first unflushed event
+ * - once the journal passes COMPACT_JOURNAL_BYTES the state is checkpointed in the background
+ * - startup = read checkpoint + replay the short tail journal
+ * Call flush() when the process may go away (service destroy, onTrimMemory).
+ *
+ * One instance per process (getInstance): all writes go through the manager lock and one journal,
+ * the scoring loop reads LearningView snapshots without locking.
+ * Data from the old ai_learning_prefs JSON format is migrated once.
  */
 public class AILearningManager {
     private static final String TAG = "AILearningManager";
     private static final String PREFS_NAME = "ai_learning_prefs";
 
+    // Legacy SharedPreferences keys (read once for migration)
     private static final String KEY_PLAY_HISTORY = "play_history";
     private static final String KEY_SKIP_HISTORY = "skip_history";
     private static final String KEY_SONG_SCORES = "song_scores";
@@ -34,6 +59,18 @@ public class AILearningManager {
     private static final String KEY_LAST_RECOMMENDED_AT = "last_recommended_at";
 
     private static final int MAX_HISTORY_SIZE = 500;
+    private static final int RECENT_SKIPS = 50;
+
+    // Max time an event stays only in memory (bounds what a crash can lose)
+    private static final long SAVE_DEBOUNCE_MS = 2000L;
+
+    // Journal size that triggers a checkpoint (~15k events)
+    private static final long COMPACT_JOURNAL_BYTES = 256L * 1024L;
+
+    private static final long EVICT_INTERVAL_MS = 60_000L;
+
+    // A reloaded library briefly has two stores alive (old one still scoring)
+    private static final int MAX_VIEWS = 2;
 
     private static final float PLAY_BOOST = 0.15f;
     private static final float SKIP_PENALTY = -0.25f;
@@ -42,20 +79,92 @@ public class AILearningManager {
 
     private final SharedPreferences prefs;
 
-    private final Map<String, Float> songScores = new HashMap<>();
-    private final Map<String, Float> moodPreferences = new HashMap<>();
+    // Single writer thread for persistence; pendingSave != null while a flush is scheduled
+    private final ScheduledExecutorService saveExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "ai-learning-save");
+        t.setDaemon(true);
+        return t;
+    });
+    private ScheduledFuture<?> pendingSave;
+    private boolean compactionQueued;
+
+    // Writers hold the manager lock; concurrent maps let getters read without it
+    private final Map<String, Float> songScores = new ConcurrentHashMap<>();
+    private final Map<String, Float> moodPreferences = new ConcurrentHashMap<>();
     private final List<String> playHistory = new ArrayList<>();
     private final List<String> skipHistory = new ArrayList<>();
 
-    private final Map<String, Long> lastPlayedAt = new HashMap<>();
-    private final Map<String, Long> lastRecommendedAt = new HashMap<>();
+    private final Map<String, Long> lastPlayedAt = new ConcurrentHashMap<>();
+    private final Map<String, Long> lastRecommendedAt = new ConcurrentHashMap<>();
+    private final Set<String> playedSongs = ConcurrentHashMap.newKeySet();
+
+    private final LearningJournal.State state = new LearningJournal.State(
+            songScores, moodPreferences, playHistory, skipHistory, lastPlayedAt, lastRecommendedAt, playedSongs);
+
+    private long lastEvictionAt;
 
-    public AILearningManager(Context context) {
-        this.prefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-        load();
+    // null if the journal could not be opened (learning then stays in memory only)
+    private LearningJournal journal;
+
+    // Id-indexed mirrors for the recommendation engine, most recently used SongStores only
+    private final Map<SongStore, LearningView> views = new LinkedHashMap<SongStore, LearningView>(4, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<SongStore, LearningView> eldest) {
+            return size() > MAX_VIEWS;
+        }
+    };
+
+    private static AILearningManager instance;
+
+    /**
+     * Process-wide store: every engine / screen shares one in-memory state and one journal writer.
+     */
+    public static synchronized AILearningManager getInstance(Context context) {
+        if (instance == null) {
+            instance = new AILearningManager(context.getApplicationContext());
+        }
+        return instance;
     }
 
-    private void load() {
+    private AILearningManager(Context context) {
+        Context app = context.getApplicationContext();
+        this.prefs = app.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        open(new LearningJournal(app.getFilesDir()));
+    }
+
+    private synchronized void open(LearningJournal j) {
+        long start = System.currentTimeMillis();
+        try {
+            boolean migrate = !j.exists();
+            j.open(state, this::apply);
+            journal = j;
+            evictExpired(System.currentTimeMillis());
+
+            if (migrate && loadLegacyPrefs()) {
+                // Fold the old JSON state into the first checkpoint, then drop it
+                journal.writeCheckpoint(journal.rotate(state));
+                prefs.edit().clear().apply();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Learning journal unavailable, learning will not be persisted", e);
+            j.close();
+            journal = null;
+        }
+
+        Log.d(TAG, "Loaded learning in " + (System.currentTimeMillis() - start) + "ms: scores=" + songScores.size() +
+                ", plays=" + playHistory.size() +
+                ", lastPlayed=" + lastPlayedAt.size() +
+                ", lastRecommended=" + lastRecommendedAt.size());
+    }
+
+    /**
+     * @return true if the legacy prefs held any learning data
+     */
+    private boolean loadLegacyPrefs() {
+        if (!prefs.contains(KEY_SONG_SCORES) && !prefs.contains(KEY_LAST_PLAYED_AT) &&
+                !prefs.contains(KEY_LAST_RECOMMENDED_AT) && !prefs.contains(KEY_PLAY_HISTORY)) {
+            return false;
+        }
         try {
             // scores
             JSONObject scoresObj = new JSONObject(prefs.getString(KEY_SONG_SCORES, "{}"));
@@ -92,53 +201,214 @@ public class AILearningManager {
                 lastRecommendedAt.put(k, lr.getLong(k));
             }
 
-            Log.d(TAG, "Loaded learning: scores=" + songScores.size() +
-                    ", plays=" + playHistory.size() +
-                    ", lastPlayed=" + lastPlayedAt.size() +
-                    ", lastRecommended=" + lastRecommendedAt.size());
+            playedSongs.addAll(lastPlayedAt.keySet());
+            playedSongs.addAll(playHistory);
+
+            Log.d(TAG, "Migrated learning from " + PREFS_NAME);
+            return true;
 
         } catch (Exception e) {
-            Log.e(TAG, "Load failed", e);
+            Log.e(TAG, "Legacy load failed", e);
+            return false;
         }
     }
 
-    private void save() {
-        try {
-            SharedPreferences.Editor editor = prefs.edit();
+    // =========================
+    // Events
+    // =========================
+
+    /**
+     * Journal + apply one event (caller holds the lock).
+     */
+    private void record(byte type, String path, float value) {
+        long now = System.currentTimeMillis();
+        if (journal != null) {
+            try {
+                journal.append(type, path, now, value);
+            } catch (IOException e) {
+                Log.e(TAG, "Journal append failed", e);
+            }
+        }
+        apply(type, path, now, value);
+        if (now - lastEvictionAt >= EVICT_INTERVAL_MS) evictExpired(now);
+        save();
+    }
 
-            JSONObject scoresObj = new JSONObject();
-            for (Map.Entry<String, Float> e : songScores.entrySet()) scoresObj.put(e.getKey(), e.getValue());
-            editor.putString(KEY_SONG_SCORES, scoresObj.toString());
+    /**
+     * Drop cooldown timestamps that fell out of the horizon (they can no longer block anything).
+     */
+    private void evictExpired(long now) {
+        lastEvictionAt = now;
+        long cutoff = now - RecencyWindow.HORIZON_MS;
+        lastPlayedAt.values().removeIf(t -> t < cutoff);
+        lastRecommendedAt.values().removeIf(t -> t < cutoff);
+    }
+
+    /**
+     * State transition for one event; used live and when replaying the journal.
+     */
+    private void apply(byte type, String path, long time, float value) {
+        if (type == LearningJournal.RESET) {
+            clearState();
+            return;
+        }
+        if (path == null) return;
+
+        switch (type) {
+            case LearningJournal.PLAYED: {
+                addHistory(playHistory, path);
+                putScore(path, Math.min(songScores.getOrDefault(path, 0.0f) + PLAY_BOOST, 1.0f));
+                skipHistory.remove(path);
+                updateRecentSkips();
+                lastPlayedAt.put(path, time);
+                playedSongs.add(path);
+                for (LearningView v : views.values()) v.markPlayed(path, time);
+                break;
+            }
+            case LearningJournal.SKIPPED:
+                addHistory(skipHistory, path);
+                updateRecentSkips();
+                putScore(path, Math.max(songScores.getOrDefault(path, 0.0f) + SKIP_PENALTY, -1.0f));
+                break;
+            case LearningJournal.COMPLETED:
+                putScore(path, Math.min(songScores.getOrDefault(path, 0.0f) + COMPLETE_BOOST, 1.0f));
+                break;
+            case LearningJournal.REPLAYED:
+                putScore(path, Math.min(songScores.getOrDefault(path, 0.0f) + REPLAY_BOOST, 1.0f));
+                break;
+            case LearningJournal.RECOMMENDED: {
+                lastRecommendedAt.put(path, time);
+                for (LearningView v : views.values()) v.markRecommended(path, time);
+                break;
+            }
+            case LearningJournal.SET_SCORE:
+                putScore(path, value);
+                break;
+            default:
+                Log.w(TAG, "Unknown learning event " + type);
+        }
+    }
+
+    private static void addHistory(List<String> history, String path) {
+        history.add(path);
+        if (history.size() > MAX_HISTORY_SIZE) history.remove(0);
+    }
+
+    private void clearState() {
+        views.clear();
+        songScores.clear();
+        moodPreferences.clear();
+        playHistory.clear();
+        skipHistory.clear();
+        lastPlayedAt.clear();
+        lastRecommendedAt.clear();
+        playedSongs.clear();
+    }
 
-            JSONObject moodObj = new JSONObject();
-            for (Map.Entry<String, Float> e : moodPreferences.entrySet()) moodObj.put(e.getKey(), e.getValue());
-            editor.putString(KEY_MOOD_PREFERENCES, moodObj.toString());
+    // =========================
+    // Persistence
+    // =========================
 
-            JSONArray playArr = new JSONArray();
-            int ps = Math.max(0, playHistory.size() - MAX_HISTORY_SIZE);
-            for (int i = ps; i < playHistory.size(); i++) playArr.put(playHistory.get(i));
-            editor.putString(KEY_PLAY_HISTORY, playArr.toString());
+    /**
+     * Schedule a journal flush. The first unflushed event sets the deadline; later events
+     * within the debounce window ride along with it (the deadline is not pushed back).
+     */
+    private void save() {
+        if (pendingSave != null) return;
+        pendingSave = saveExecutor.schedule(this::flush, SAVE_DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+    }
 
-            JSONArray skipArr = new JSONArray();
-            int ss = Math.max(0, skipHistory.size() - MAX_HISTORY_SIZE);
-            for (int i = ss; i < skipHistory.size(); i++) skipArr.put(skipHistory.get(i));
-            editor.putString(KEY_SKIP_HISTORY, skipArr.toString());
+    /**
+     * Push buffered events to the journal file now (a few hundred bytes at most, fine on the main thread).
+     * Queues a background checkpoint when the journal has grown past the threshold.
+     */
+    public synchronized void flush() {
+        if (pendingSave != null) {
+            pendingSave.cancel(false);
+            pendingSave = null;
+        }
+        if (journal == null) return;
 
-            JSONObject lp = new JSONObject();
-            for (Map.Entry<String, Long> e : lastPlayedAt.entrySet()) lp.put(e.getKey(), e.getValue());
-            editor.putString(KEY_LAST_PLAYED_AT, lp.toString());
+        try {
+            journal.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Journal flush failed", e);
+        }
 
-            JSONObject lr = new JSONObject();
-            for (Map.Entry<String, Long> e : lastRecommendedAt.entrySet()) lr.put(e.getKey(), e.getValue());
-            editor.putString(KEY_LAST_RECOMMENDED_AT, lr.toString());
+        if (journal.journalBytes() >= COMPACT_JOURNAL_BYTES && !compactionQueued) {
+            compactionQueued = true;
+            saveExecutor.execute(this::compact);
+        }
+    }
 
-            editor.apply();
+    /**
+     * Checkpoint the current state: rotate under the lock, write the checkpoint off it.
+     */
+    private void compact() {
+        LearningJournal j;
+        LearningJournal.Checkpoint cp;
+        synchronized (this) {
+            compactionQueued = false;
+            j = journal;
+            if (j == null) return;
+            evictExpired(System.currentTimeMillis());
+            try {
+                cp = j.rotate(state);
+            } catch (IOException e) {
+                Log.e(TAG, "Journal rotation failed", e);
+                return;
+            }
+        }
+        try {
+            j.writeCheckpoint(cp);
+        } catch (IOException e) {
+            // Old journals are kept, so nothing is lost; the next compaction retries
+            Log.e(TAG, "Checkpoint write failed", e);
+        }
+    }
 
-        } catch (Exception e) {
-            Log.e(TAG, "Save failed", e);
+    /**
+     * Dense view of the learning state over the given store's song ids.
+     * Built once per store, then updated in place by every record* call.
+     */
+    public synchronized LearningView viewFor(SongStore store) {
+        LearningView existing = views.get(store);
+        if (existing != null) return existing;
+
+        LearningView v = new LearningView(store);
+        for (Map.Entry<String, Float> e : songScores.entrySet()) {
+            int id = store.idOf(e.getKey());
+            if (id >= 0) v.score[id] = e.getValue();
+        }
+        for (Map.Entry<String, Long> e : lastPlayedAt.entrySet()) {
+            int id = store.idOf(e.getKey());
+            if (id >= 0) v.played.mark(id, e.getValue());
         }
+        for (Map.Entry<String, Long> e : lastRecommendedAt.entrySet()) {
+            int id = store.idOf(e.getKey());
+            if (id >= 0) v.recommended.mark(id, e.getValue());
+        }
+        for (String path : playedSongs) {
+            int id = store.idOf(path);
+            if (id >= 0) v.everPlayed.set(id);
+        }
+        v.setRecentSkips(skipHistory, RECENT_SKIPS);
+        views.put(store, v);
+        return v;
+    }
+
+    private void putScore(String path, float score) {
+        songScores.put(path, score);
+        for (LearningView v : views.values()) v.setScore(path, score);
+    }
+
+    private void updateRecentSkips() {
+        for (LearningView v : views.values()) v.setRecentSkips(skipHistory, RECENT_SKIPS);
     }
 
+    /**
+     * @return last play time, or 0 if never played or longer ago than the cooldown horizon
+     */
     public long getLastPlayedAt(String path) {
         Long t = lastPlayedAt.get(path);
         return (t != null) ? t : 0L;
@@ -149,54 +419,39 @@ public class AILearningManager {
         return (t != null) ? t : 0L;
     }
 
-    public void recordSongRecommended(String path) {
+    public synchronized void recordSongRecommended(String path) {
         if (path == null || path.isEmpty()) return;
-        lastRecommendedAt.put(path, System.currentTimeMillis());
-        save();
+        record(LearningJournal.RECOMMENDED, path, 0f);
     }
 
-    public void recordSongPlayed(String songPath) {
-        playHistory.add(songPath);
-
-        float currentScore = songScores.getOrDefault(songPath, 0.0f);
-        songScores.put(songPath, Math.min(currentScore + PLAY_BOOST, 1.0f));
-
-        skipHistory.remove(songPath);
-
-        lastPlayedAt.put(songPath, System.currentTimeMillis());
-
-        save();
+    public synchronized void recordSongPlayed(String songPath) {
+        if (songPath == null) return;
+        record(LearningJournal.PLAYED, songPath, 0f);
         Log.d(TAG, "Played: " + songPath + " score=" + songScores.get(songPath));
     }
 
-    public void recordSongSkipped(String songPath) {
-        skipHistory.add(songPath);
-
-        float currentScore = songScores.getOrDefault(songPath, 0.0f);
-        songScores.put(songPath, Math.max(currentScore + SKIP_PENALTY, -1.0f));
-
-        save();
+    public synchronized void recordSongSkipped(String songPath) {
+        if (songPath == null) return;
+        record(LearningJournal.SKIPPED, songPath, 0f);
         Log.d(TAG, "Skipped: " + songPath + " score=" + songScores.get(songPath));
     }
 
-    public void recordSongCompleted(String songPath) {
-        float currentScore = songScores.getOrDefault(songPath, 0.0f);
-        songScores.put(songPath, Math.min(currentScore + COMPLETE_BOOST, 1.0f));
-        save();
+    public synchronized void recordSongCompleted(String songPath) {
+        if (songPath == null) return;
+        record(LearningJournal.COMPLETED, songPath, 0f);
     }
 
-    public void recordSongReplayed(String songPath) {
-        float currentScore = songScores.getOrDefault(songPath, 0.0f);
-        songScores.put(songPath, Math.min(currentScore + REPLAY_BOOST, 1.0f));
-        save();
+    public synchronized void recordSongReplayed(String songPath) {
+        if (songPath == null) return;
+        record(LearningJournal.REPLAYED, songPath, 0f);
     }
 
     public float getSongScore(String songPath) {
         return songScores.getOrDefault(songPath, 0.0f);
     }
 
-    public boolean wasRecentlySkipped(String songPath) {
-        int recentCount = Math.min(50, skipHistory.size());
+    public synchronized boolean wasRecentlySkipped(String songPath) {
+        int recentCount = Math.min(RECENT_SKIPS, skipHistory.size());
         for (int i = skipHistory.size() - recentCount; i < skipHistory.size(); i++) {
             if (i >= 0 && skipHistory.get(i).equals(songPath)) return true;
         }
@@ -211,17 +466,19 @@ public class AILearningManager {
         return out;
     }
 
-    public void reset() {
-        songScores.clear();
-        moodPreferences.clear();
-        playHistory.clear();
-        skipHistory.clear();
-        lastPlayedAt.clear();
-        lastRecommendedAt.clear();
+    public synchronized void reset() {
+        record(LearningJournal.RESET, null, 0f);
         prefs.edit().clear().apply();
+
+        // Start over from an empty checkpoint instead of replaying pre-reset history
+        flush();
+        if (!compactionQueued) {
+            compactionQueued = true;
+            saveExecutor.execute(this::compact);
+        }
     }
 
-    public String getStats() {
+    public synchronized String getStats() {
         int pos = 0, neg = 0;
         for (float s : songScores.values()) {
             if (s > 0) pos++;
@@ -234,15 +491,19 @@ public class AILearningManager {
                 "- Play history: " + playHistory.size() + "\n" +
                 "- Skip history: " + skipHistory.size() + "\n" +
                 "- lastPlayedAt: " + lastPlayedAt.size() + "\n" +
-                "- lastRecommendedAt: " + lastRecommendedAt.size();
+                "- lastRecommendedAt: " + lastRecommendedAt.size() + "\n" +
+                "- Played songs: " + playedSongs.size();
     }
 
+    /**
+     * Live read-only view (safe to iterate while events are recorded).
+     */
     public Map<String, Float> getAllSongScores() {
-        return songScores;
+        return Collections.unmodifiableMap(songScores);
     }
 
-    public void setSongScore(String songPath, float newScore) {
-        songScores.put(songPath, newScore);
-        save();
+    public synchronized void setSongScore(String songPath, float newScore) {
+        if (songPath == null) return;
+        record(LearningJournal.SET_SCORE, songPath, newScore);
     }
 }
@@ -1,7 +1,6 @@
 package com.tomersch.mp3playerai.ai;
 
 import android.content.Context;
-import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
 
@@ -9,41 +8,73 @@ import com.tomersch.mp3playerai.models.Song;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * AI recommender:
- * - On-device LLM parses query -> QueryProfile
- * - Score all songs against profile + learning + freshness
- * - Take top X% pool, then randomly pick (weighted) without replacement
+ * - Query -> QueryProfile: RuleBasedQueryParser, on-device LLM only for queries the rules can't read
+ * - Or an explicit QueryProfile (UI sliders) with no parsing at all
+ * - Score all songs against profile + learning + freshness (over the in-memory SongStore)
+ * - Keep the top X% pool in a bounded heap, then randomly pick (weighted) without replacement
  * - Persist "recommended cooldown" to prevent returning the same songs every time
+ * - AI Continue scores against a SessionCentroid (moods + embedding of what was played) instead of text
  */
 public class AIRecommendationEngine implements AutoCloseable {
     private static final String TAG = "AIRecommendationEngine";
 
     // Prevent repeating recommendations across calls (persisted)
-    private static final long RECOMMEND_COOLDOWN_MS = 60L * 60L * 1000L; // 60 min
+    private static final int RECOMMEND_COOLDOWN_MINUTES = 60;
+
+    // Parallel scoring: default library size to switch on, smallest chunk per task
+    private static final int DEFAULT_PARALLEL_THRESHOLD = 8000;
+    private static final int MIN_PARALLEL_CHUNK = 1024;
+
+    // Session continuation: how hard a skip pushes away, floor for short listens, ANN candidates
+    private static final float SESSION_SKIP_WEIGHT = 0.5f;
+    private static final float SESSION_MIN_WEIGHT = 0.1f;
+    private static final int SESSION_CANDIDATES = 500;
 
     private final Context appContext;
     private final SQLiteDatabase database;
     private final AILearningManager learningManager;
 
+    // Seedable randomness for pool sampling + final shuffle
+    private final Random random = new Random();
+
+    private volatile int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+    // Columnar snapshot of the songs table (lazy, see getSongStore)
+    private volatile SongStore songStore;
+
+    // BM25 keyword index over songStore (lazy, see getKeywordIndex)
+    private volatile KeywordIndex keywordIndex;
+
+    // ANN index over embeddings (lazy, see getEmbeddingIndex)
+    private final Object indexLock = new Object();
+    private volatile EmbeddingIndex embeddingIndex;
+    private volatile boolean indexLoaded = false;
+
     // Reusable LLM parser (you can also use for playlist naming)
     private final LocalLlmInterpreter llmParser;
+    private final LlmLifecycleManager llmManager;   // loads / unloads llmParser's model, runs its tasks
 
     public AIRecommendationEngine(Context context, String modelTaskPath) {
         this.appContext = context.getApplicationContext();
-        this.learningManager = new AILearningManager(appContext);
+        this.learningManager = AILearningManager.getInstance(appContext);
 
         this.database = openDatabaseOrThrow(appContext);
 
         // LLM parser is separate and reusable
         this.llmParser = new LocalLlmInterpreter(appContext, modelTaskPath);
+        this.llmManager = new LlmLifecycleManager(appContext, llmParser);
 
         Log.d(TAG, "Initialized. " + learningManager.getStats());
     }
@@ -64,285 +95,548 @@ public class AIRecommendationEngine implements AutoCloseable {
             String textQuery,
             int maxResults,
             Set<String> excludePaths
+    ) {
+        if (maxResults <= 0) return new ArrayList<>();
+        return getRecommendations(parseQuery(textQuery), maxResults, excludePaths);
+    }
+
+    /**
+     * Recommend for an explicit profile (mood targets, genres/keywords, pool size, temperature),
+     * e.g. built from UI sliders. No parsing involved.
+     */
+    public List<RecommendedSong> getRecommendations(
+            QueryProfile profile,
+            int maxResults,
+            Set<String> excludePaths
     ) {
         if (maxResults <= 0) return new ArrayList<>();
         if (excludePaths == null) excludePaths = new HashSet<>();
+        if (profile == null) profile = new QueryProfile();
+
+        SongStore s;
+        try {
+            s = getSongStore();
+        } catch (Exception e) {
+            Log.e(TAG, "Recommendation query failed", e);
+            return new ArrayList<>();
+        }
 
-        // LLM -> structured vector
-        QueryProfile profile = llmParser.parseQuery(textQuery);
+        return recommend(s, profile, null, maxResults, excludePaths);
+    }
+
+    /**
+     * Text -> QueryProfile. Rules first (microseconds); the LLM (loaded on demand) is only
+     * consulted when the query has words the rules could not make sense of.
+     */
+    public QueryProfile parseQuery(String textQuery) {
+        return parseQuery(textQuery, null);
+    }
+
+    /**
+     * parseQuery; listener (may be null) sees partial profiles while the LLM streams its answer.
+     */
+    public QueryProfile parseQuery(String textQuery, LocalLlmInterpreter.ProfileListener listener) {
+        long start = System.nanoTime();
+        RuleBasedQueryParser.Result rules = RuleBasedQueryParser.parse(textQuery);
+
+        QueryProfile profile = rules.profile;
+        String source = "rules";
+        // An empty query (e.g. sliders only) is ambiguous to the rules too, but never worth a model load
+        if (!rules.isEmpty() && rules.isAmbiguous()) {
+            // LLM: its cache answers repeated queries without touching the model; otherwise the
+            // model is loaded on demand (blocks this background thread for the load + inference)
+            QueryProfile llm = llmManager.getCachedProfile(textQuery);
+            source = "llm cache";
+            if (llm == null && llmManager.hasModel()) {
+                try {
+                    llm = llmManager.parseQuery(textQuery, LlmLifecycleManager.Priority.INTERACTIVE, listener).get();
+                    source = "llm";
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    Log.w(TAG, "LLM parse failed, using rules: " + e.getCause());
+                }
+            }
+
+            if (llm != null) {
+                // Keep free-text words the rules found (artist names etc.) for keyword matching
+                for (String k : rules.profile.keywords) {
+                    if (!llm.keywords.contains(k)) llm.keywords.add(k);
+                }
+                profile = llm;
+            }
+        }
 
-        // Debug: confirm DB has rows (helps with your “cursor loop ends immediately” issue)
-        int totalRows = getSongCountSafe();
-        if (totalRows <= 0) {
+        Log.d(TAG, "Parsed query (" + source + ", " + rules.recognized + " recognized / " + rules.unknown +
+                " unknown) in " + (System.nanoTime() - start) / 1000 + "us: " + profile);
+        return profile;
+    }
+
+    /**
+     * Score the library against profile (+ optional per-song similarity), keep the top pool and
+     * draw maxResults from it. Shared by text queries and session continuation.
+     */
+    private List<RecommendedSong> recommend(SongStore s, QueryProfile profile, float[] similarityScores,
+                                            int maxResults, Set<String> excludePaths) {
+        if (s.size <= 0) {
             Log.e(TAG, "DB has 0 songs. Check DB path/table name.");
             return new ArrayList<>();
         }
 
-        List<RecommendedSong> candidates = new ArrayList<>(Math.min(totalRows, 5000));
+        // Hard excludes (queue, session filters, etc.) resolved to ids once
+        BitSet excluded = new BitSet(s.size);
+        for (String path : excludePaths) {
+            int id = s.idOf(path);
+            if (id >= 0) excluded.set(id);
+        }
 
-        // Pull only what you need.
-        // You can extend with meta/audio embedding blobs later.
-        try (Cursor cursor = database.rawQuery(
-                "SELECT path, title, artist, genre, tags, year, " +
-                        "hype, aggressive, melodic, atmospheric, cinematic, rhythmic, filename " +
-                        "FROM songs",
-                null
-        )) {
+        float[] keywordScores = null;
+        String[] keywords = normalizeKeywords(profile.keywords);
+        if (keywords.length > 0) keywordScores = getKeywordIndex(s).score(keywords);
 
-            while (cursor.moveToNext()) {
-                String path = cursor.getString(0);
-                if (path == null) continue;
+        ScoreContext ctx = new ScoreContext(s, excluded, profile, keywordScores, similarityScores,
+                learningManager.viewFor(s));
 
-                // Hard excludes (queue, session filters, etc.)
-                if (excludePaths.contains(path)) continue;
+        // Bounded top-K: n (survivors) is unknown until the scan ends, so size the heap
+        // for the largest pool any n <= s.size could ask for.
+        int minPool = 50;
+        int byNeed = maxResults * 5;
+        int maxPool = Math.max(minPool, Math.max(byNeed, (int) Math.ceil(s.size * profile.topPercent)));
+        int capacity = Math.min(s.size, maxPool);
+
+        TopKSelector top;
+        int n;
+        if (s.size >= parallelThreshold) {
+            ScoreTask task = new ScoreTask(ctx, 0, s.size, capacity,
+                    Math.max(MIN_PARALLEL_CHUNK, s.size / (ForkJoinPool.getCommonPoolParallelism() * 4)));
+            ForkJoinPool.commonPool().invoke(task);
+            top = task.top;
+            n = task.survivors;
+        } else {
+            top = new TopKSelector(capacity);
+            n = scoreRange(ctx, 0, s.size, top);
+        }
 
-                // Persisted anti-repeat: recommended cooldown
-                if (isInRecommendCooldown(path)) continue;
+        if (n == 0) {
+            Log.w(TAG, "No candidates after filters. Consider relaxing cooldowns.");
+            return new ArrayList<>();
+        }
+
+        // Build top-percent pool (best-first)
+        int byPercent = Math.max(1, (int) Math.ceil(n * profile.topPercent));
+        int poolSize = Math.min(n, Math.max(minPool, Math.max(byPercent, byNeed)));
+        top.sortDescending();
 
-                // Avoid very recent plays (from profile)
-                if (wasPlayedRecently(path, profile.avoidRecentMinutes)) continue;
+        float[] poolScores = new float[poolSize];
+        for (int i = 0; i < poolSize; i++) poolScores[i] = top.scoreAt(i);
 
-                String title = cursor.getString(1);
-                String artist = cursor.getString(2);
-                String genre = cursor.getString(3);
-                String tags = cursor.getString(4);
-                int year = cursor.getInt(5);
+        // Weighted random without replacement from the pool; objects only for the picks
+        int[] pickedIdx = weightedPick(poolScores, Math.min(maxResults, poolSize), profile.temperature);
+
+        List<RecommendedSong> picked = new ArrayList<>(pickedIdx.length);
+        for (int i : pickedIdx) {
+            picked.add(toRecommendedSong(s, top.idAt(i), top.scoreAt(i)));
+        }
+
+        // Persist "recommended now" so next call won't return the same set
+        for (RecommendedSong r : picked) {
+            learningManager.recordSongRecommended(r.path);
+        }
 
-                int hype = cursor.getInt(6);
-                int aggressive = cursor.getInt(7);
-                int melodic = cursor.getInt(8);
-                int atmospheric = cursor.getInt(9);
-                int cinematic = cursor.getInt(10);
-                int rhythmic = cursor.getInt(11);
+        // Optional shuffle so UI doesn’t look ordered
+        Collections.shuffle(picked, random);
 
-                String filename = cursor.getString(12);
+        return picked;
+    }
 
-                float score = 0f;
+    /**
+     * Score songs [from, to) into top. Chunks only read shared state, so they can run in parallel.
+     *
+     * @return number of songs that survived the filters (score > 0)
+     */
+    static int scoreRange(ScoreContext ctx, int from, int to, TopKSelector top) {
+        SongStore s = ctx.store;
+        int n = 0;
 
-                // 1) Mood match
-                score += moodScore(profile.moods, hype, aggressive, melodic, atmospheric, cinematic, rhythmic) * 0.45f;
+        for (int id = from; id < to; id++) {
+            if (ctx.excluded.get(id)) continue;
 
-                // 2) Keyword match (LLM-provided)
-                score += keywordScore(profile.keywords, title, artist, genre, tags, filename) * 0.35f;
+            // Persisted anti-repeat: recommended cooldown
+            if (ctx.recentlyRecommended.get(id)) continue;
 
-                // 3) Learning preference (like/dislike)
-                score = applyLearning(path, score);
+            // Avoid very recent plays (from profile)
+            if (ctx.recentlyPlayed.get(id)) continue;
 
-                // 4) Freshness exploration: never played gets a small boost
-                score = applyNovelty(path, score);
+            float score = 0f;
 
-                if (score <= 0f) continue;
+            // 1) Mood match
+            if (ctx.useMoods) score += moodScore(s, id, ctx.moodTargets) * 0.45f;
 
-                RecommendedSong r = new RecommendedSong();
-                r.path = path;
-                r.title = (title != null && !title.isEmpty()) ? title : "Unknown";
-                r.artist = (artist != null && !artist.isEmpty()) ? artist : "Unknown Artist";
-                r.genre = genre;
-                r.tags = tags;
-                r.year = year;
-                r.filename = filename;
-                r.score = score;
+            // 2) Keyword match (LLM-provided)
+            if (ctx.keywordScores != null) score += ctx.keywordScores[id] * 0.35f;
 
-                candidates.add(r);
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Recommendation query failed", e);
-            return new ArrayList<>();
+            // 2b) Embedding similarity to the session centroid (continuation only)
+            if (ctx.similarityScores != null) score += ctx.similarityScores[id] * 0.55f;
+
+            // 3) Learning preference (like/dislike)
+            score = applyLearning(ctx.learning.score[id], ctx.recentSkip.get(id), score);
+
+            // 4) Freshness exploration: never played gets a small boost
+            score = applyNovelty(ctx.everPlayed.get(id), score);
+
+            if (score <= 0f) continue;
+
+            n++;
+            top.offer(score, id);
         }
+        return n;
+    }
 
-        if (candidates.isEmpty()) {
-            Log.w(TAG, "No candidates after filters. Consider relaxing cooldowns.");
-            return new ArrayList<>();
+    /**
+     * Read-only inputs of one scoring pass (shared by all chunks).
+     */
+    static final class ScoreContext {
+        final SongStore store;
+        final BitSet excluded;
+        final int[] moodTargets;
+        final boolean useMoods;
+        final float[] keywordScores; // null = no keywords
+        final float[] similarityScores; // null = no similarity seed
+        final LearningView learning;
+        // Per-query snapshots: one clock read, so every chunk sees the same cutoffs
+        final BitSet recentlyRecommended;
+        final BitSet recentlyPlayed;
+        final BitSet everPlayed;
+        final BitSet recentSkip;
+
+        ScoreContext(SongStore store, BitSet excluded, QueryProfile profile, float[] keywordScores,
+                     float[] similarityScores, LearningView learning) {
+            this.store = store;
+            this.excluded = excluded;
+            this.moodTargets = SongStore.moodTargets(profile.moods);
+            this.useMoods = profile.moods != null && !profile.moods.isEmpty();
+            this.keywordScores = keywordScores;
+            this.similarityScores = similarityScores;
+            long now = System.currentTimeMillis();
+            this.learning = learning;
+            this.recentlyRecommended = learning.recommended.window(RECOMMEND_COOLDOWN_MINUTES, now);
+            this.recentlyPlayed = learning.played.window(Math.max(5, profile.avoidRecentMinutes), now);
+            this.everPlayed = learning.everPlayed;
+            this.recentSkip = learning.recentSkip;
         }
+    }
 
-        // Sort DESC by score
-        candidates.sort((a, b) -> Float.compare(b.score, a.score));
+    /**
+     * Fork/join split of the id range: leaves score into their own top-K, parents merge.
+     * TopKSelector breaks score ties by id, so the merged pool equals the single-threaded one.
+     */
+    static final class ScoreTask extends RecursiveAction {
+        private final ScoreContext ctx;
+        private final int from, to, capacity, chunk;
+
+        TopKSelector top;
+        int survivors;
+
+        ScoreTask(ScoreContext ctx, int from, int to, int capacity, int chunk) {
+            this.ctx = ctx;
+            this.from = from;
+            this.to = to;
+            this.capacity = capacity;
+            this.chunk = chunk;
+        }
 
-        // Build top-percent pool
-        int n = candidates.size();
-        int byPercent = Math.max(1, (int) Math.ceil(n * profile.topPercent));
-        int minPool = 50;
-        int byNeed = maxResults * 5;
-        int poolSize = Math.min(n, Math.max(minPool, Math.max(byPercent, byNeed)));
+        @Override
+        protected void compute() {
+            if (to - from <= chunk) {
+                top = new TopKSelector(capacity);
+                survivors = scoreRange(ctx, from, to, top);
+                return;
+            }
 
-        List<RecommendedSong> pool = new ArrayList<>(candidates.subList(0, poolSize));
+            int mid = (from + to) >>> 1;
+            ScoreTask left = new ScoreTask(ctx, from, mid, capacity, chunk);
+            ScoreTask right = new ScoreTask(ctx, mid, to, capacity, chunk);
+            invokeAll(left, right);
 
-        // Weighted random without replacement from the pool
-        List<RecommendedSong> picked = weightedPick(pool, Math.min(maxResults, pool.size()), profile.temperature);
+            top = left.top;
+            top.addAll(right.top);
+            survivors = left.survivors + right.survivors;
+        }
+    }
 
-        // Persist "recommended now" so next call won't return the same set
-        for (RecommendedSong r : picked) {
-            learningManager.recordSongRecommended(r.path);
+    /**
+     * Libraries with at least this many songs are scored on the common ForkJoinPool.
+     * Integer.MAX_VALUE keeps scoring single-threaded.
+     */
+    public void setParallelThreshold(int minSongs) {
+        parallelThreshold = Math.max(1, minSongs);
+    }
+
+    /**
+     * Columnar library snapshot, loaded from SQLite on first use.
+     */
+    public SongStore getSongStore() {
+        SongStore s = songStore;
+        if (s != null) return s;
+        synchronized (this) {
+            if (songStore == null) songStore = SongStore.load(database);
+            return songStore;
         }
+    }
 
-        // Optional shuffle so UI doesn’t look ordered
-        Collections.shuffle(picked);
+    /**
+     * Keyword inverted index over the given store, built on first keyword query.
+     */
+    private KeywordIndex getKeywordIndex(SongStore s) {
+        KeywordIndex idx = keywordIndex;
+        if (idx != null && idx.store == s) return idx;
+        synchronized (this) {
+            if (keywordIndex == null || keywordIndex.store != s) {
+                long start = System.currentTimeMillis();
+                keywordIndex = KeywordIndex.build(s);
+                Log.d(TAG, "Keyword index: " + keywordIndex.termCount() + " terms, " +
+                        keywordIndex.postingCount() + " postings in " + (System.currentTimeMillis() - start) + "ms");
+            }
+            return keywordIndex;
+        }
+    }
 
-        return picked;
+    /**
+     * Drop the in-memory snapshot so the next request re-reads the songs table
+     * (call after the local DB was rebuilt).
+     */
+    public synchronized void reloadLibrary() {
+        songStore = null;
+        keywordIndex = null;
+        synchronized (indexLock) {
+            embeddingIndex = null;
+            indexLoaded = false;
+        }
     }
 
-    private int getSongCountSafe() {
-        Cursor c = null;
-        try {
-            c = database.rawQuery("SELECT COUNT(*) FROM songs", null);
-            if (c.moveToFirst()) return c.getInt(0);
-            return 0;
-        } catch (Exception e) {
-            Log.e(TAG, "COUNT(*) failed", e);
-            return 0;
-        } finally {
-            if (c != null) c.close();
+    // =========================
+    // Embedding similarity (ANN)
+    // =========================
+
+    /**
+     * ANN index over audio/meta embeddings. Loaded from disk or built on first use
+     * (slow on first build - call from a background thread). Null if the DB has no embeddings.
+     */
+    public EmbeddingIndex getEmbeddingIndex() {
+        if (indexLoaded) return embeddingIndex;
+        SongStore s = getSongStore();
+        synchronized (indexLock) {
+            if (!indexLoaded) {
+                embeddingIndex = EmbeddingIndex.loadOrBuild(appContext, database, s);
+                indexLoaded = true;
+            }
+            return embeddingIndex;
         }
     }
 
-    private boolean isInRecommendCooldown(String path) {
-        long t = learningManager.getLastRecommendedAt(path);
-        if (t <= 0) return false;
-        return (System.currentTimeMillis() - t) < RECOMMEND_COOLDOWN_MS;
+    /**
+     * "More like this": k nearest songs to songId by embedding (songId itself excluded).
+     */
+    public List<RecommendedSong> findSimilar(int songId, int k) {
+        EmbeddingIndex idx = getEmbeddingIndex();
+        if (idx == null || !idx.contains(songId)) return new ArrayList<>();
+        return toRecommendedSongs(idx.search(idx.vectorOf(songId), k, songId));
+    }
+
+    public List<RecommendedSong> findSimilar(String path, int k) {
+        return findSimilar(getSongStore().idOf(path), k);
+    }
+
+    /**
+     * k nearest songs to an index-space vector (length EmbeddingIndex.DIM).
+     */
+    public List<RecommendedSong> findNearest(float[] vector, int k) {
+        EmbeddingIndex idx = getEmbeddingIndex();
+        if (idx == null) return new ArrayList<>();
+        return toRecommendedSongs(idx.search(vector, k, -1));
+    }
+
+    private List<RecommendedSong> toRecommendedSongs(TopKSelector top) {
+        SongStore s = getSongStore();
+        List<RecommendedSong> out = new ArrayList<>(top.size());
+        for (int i = 0; i < top.size(); i++) out.add(toRecommendedSong(s, top.idAt(i), top.scoreAt(i)));
+        return out;
     }
 
-    private boolean wasPlayedRecently(String path, int avoidRecentMinutes) {
-        long last = learningManager.getLastPlayedAt(path);
-        if (last <= 0) return false;
-        long windowMs = Math.max(5, avoidRecentMinutes) * 60L * 1000L;
-        return (System.currentTimeMillis() - last) < windowMs;
+    private static RecommendedSong toRecommendedSong(SongStore s, int id, float score) {
+        String title = s.title(id);
+        String artist = s.artist(id);
+
+        RecommendedSong r = new RecommendedSong();
+        r.path = s.paths[id];
+        r.title = (title != null && !title.isEmpty()) ? title : "Unknown";
+        r.artist = (artist != null && !artist.isEmpty()) ? artist : "Unknown Artist";
+        r.genre = s.genre(id);
+        r.tags = s.tags(id);
+        r.year = s.years[id];
+        r.filename = s.filename(id);
+        r.score = score;
+        return r;
     }
 
-    private float applyLearning(String path, float base) {
-        float learned = learningManager.getSongScore(path); // -1..+1
+    private static float applyLearning(float learned, boolean recentlySkipped, float base) {
+        // learned: -1..+1
         float out = base;
 
         if (learned > 0f) out *= (1.0f + learned * 0.50f);
         else if (learned < 0f) out *= (1.0f + learned * 0.35f);
 
-        if (learningManager.wasRecentlySkipped(path)) out *= 0.30f;
+        if (recentlySkipped) out *= 0.30f;
 
         return out;
     }
 
-    private float applyNovelty(String path, float score) {
-        long last = learningManager.getLastPlayedAt(path);
-        if (last <= 0) {
+    private static float applyNovelty(boolean everPlayed, float score) {
+        if (!everPlayed) {
             // never played -> exploration bonus
             return score * 1.12f;
         }
         return score;
     }
 
-    private static float moodScore(
-            Map<String, Integer> moods,
-            int hype, int aggressive, int melodic, int atmospheric, int cinematic, int rhythmic
-    ) {
-        if (moods == null || moods.isEmpty()) return 0f;
-
+    private static float moodScore(SongStore s, int id, int[] targets) {
         float sum = 0f;
-        int count = 0;
-
-        sum += oneMood(moods, "hype", hype); count++;
-        sum += oneMood(moods, "aggressive", aggressive); count++;
-        sum += oneMood(moods, "melodic", melodic); count++;
-        sum += oneMood(moods, "atmospheric", atmospheric); count++;
-        sum += oneMood(moods, "cinematic", cinematic); count++;
-        sum += oneMood(moods, "rhythmic", rhythmic); count++;
-
-        return (count > 0) ? (sum / count) : 0f;
+        for (int m = 0; m < SongStore.MOOD_COUNT; m++) {
+            float diff = Math.abs(targets[m] - s.moods[m][id]) / 100f;
+            sum += 1.0f - diff; // 1 best, 0 worst
+        }
+        return sum / SongStore.MOOD_COUNT;
     }
 
-    private static float oneMood(Map<String, Integer> moods, String key, int val) {
-        int target = moods.getOrDefault(key, 50);
-        float diff = Math.abs(target - val) / 100f;
-        return 1.0f - diff; // 1 best, 0 worst
+    // =========================
+    // Session continuation (AI Continue)
+    // =========================
+
+    /**
+     * Fold a listened song into the session centroid. listenRatio = played / duration (0..1),
+     * a skipped song pushes the centroid away from itself instead.
+     * Cheap (never builds the ANN index), fine to call on the main thread.
+     */
+    public void recordSessionListen(SessionCentroid session, String path, float listenRatio, boolean skipped) {
+        SongStore s = getSongStore();
+        int id = s.idOf(path);
+        if (id < 0) return;
+
+        float ratio = Math.max(0f, Math.min(1f, listenRatio));
+        float weight = skipped ? -SESSION_SKIP_WEIGHT * (1f - ratio) : Math.max(SESSION_MIN_WEIGHT, ratio);
+        session.add(s, loadedEmbeddingIndex(), id, weight);
     }
 
-    private static float keywordScore(
-            List<String> keywords,
-            String title,
-            String artist,
-            String genre,
-            String tags,
-            String filename
-    ) {
-        if (keywords == null || keywords.isEmpty()) return 0f;
+    /**
+     * Songs close to what this session has been playing: mood targets and embedding similarity
+     * come from the session centroid, no text query or LLM involved. While the session is still
+     * empty, seedPath (e.g. the song playing now) stands in for it.
+     * May build the ANN index on first use - call from a background thread.
+     */
+    public List<RecommendedSong> continueSession(SessionCentroid session, String seedPath,
+                                                 int maxResults, Set<String> excludePaths) {
+        if (maxResults <= 0) return new ArrayList<>();
+        if (excludePaths == null) excludePaths = new HashSet<>();
 
-        String t = safeLower(title);
-        String a = safeLower(artist);
-        String g = safeLower(genre);
-        String ta = safeLower(tags);
-        String f = safeLower(filename);
+        SongStore s;
+        try {
+            s = getSongStore();
+        } catch (Exception e) {
+            Log.e(TAG, "Continuation query failed", e);
+            return new ArrayList<>();
+        }
+        EmbeddingIndex index = getEmbeddingIndex();
 
-        int hits = 0;
-        int total = 0;
+        int[] moodTargets = session.moodTargets(s);
+        float[] centroid = index != null ? session.embedding(s, index) : null;
 
-        for (String k : keywords) {
-            String kw = (k == null) ? "" : k.trim().toLowerCase();
-            if (kw.length() < 3) continue;
+        if (moodTargets == null && seedPath != null) {
+            int seed = s.idOf(seedPath);
+            if (seed >= 0) {
+                moodTargets = new int[SongStore.MOOD_COUNT];
+                for (int m = 0; m < SongStore.MOOD_COUNT; m++) moodTargets[m] = s.moods[m][seed];
+                if (index != null) centroid = index.vectorOf(seed);
+            }
+        }
 
-            total++;
+        if (moodTargets == null) {
+            Log.d(TAG, "Session is empty and has no seed, nothing to continue from");
+            return new ArrayList<>();
+        }
 
-            boolean matched =
-                    t.contains(kw) ||
-                            a.contains(kw) ||
-                            g.contains(kw) ||
-                            ta.contains(kw) ||
-                            f.contains(kw);
+        QueryProfile profile = new QueryProfile();
+        for (int m = 0; m < SongStore.MOOD_COUNT; m++) profile.moods.put(SongStore.MOOD_NAMES[m], moodTargets[m]);
 
-            if (matched) hits++;
+        // Dense similarity for the nearest candidates only, everything else scores on moods alone
+        float[] similarity = null;
+        if (centroid != null) {
+            TopKSelector near = index.search(centroid, Math.min(s.size, Math.max(SESSION_CANDIDATES, maxResults * 20)), -1);
+            similarity = new float[s.size];
+            for (int i = 0; i < near.size(); i++) similarity[near.idAt(i)] = Math.max(0f, near.scoreAt(i));
         }
 
-        if (total == 0) return 0f;
-        return Math.min(1.0f, (float) hits / (float) total);
+        return recommend(s, profile, similarity, maxResults, excludePaths);
     }
 
-    private static String safeLower(String s) {
-        return (s == null) ? "" : s.toLowerCase();
+    /**
+     * ANN index if it is already loaded, otherwise null (never triggers a build).
+     */
+    private EmbeddingIndex loadedEmbeddingIndex() {
+        return indexLoaded ? embeddingIndex : null;
     }
 
+    /**
+     * Lowercase/trim keywords once per query; drops keywords shorter than 3 chars.
+     */
+    private static String[] normalizeKeywords(List<String> keywords) {
+        if (keywords == null || keywords.isEmpty()) return new String[0];
+        List<String> out = new ArrayList<>(keywords.size());
+        for (String k : keywords) {
+            String kw = (k == null) ? "" : k.trim().toLowerCase();
+            if (kw.length() >= 3) out.add(kw);
+        }
+        return out.toArray(new String[0]);
+    }
+
+
     /**
      * Weighted random pick without replacement.
      * Uses temperature to control randomness:
      * - lower temp => more greedy
      * - higher temp => more random within pool
+     * Draws all picks in one pass (see WeightedSampler).
+     *
+     * @return indices into poolScores, in pick order
      */
-    private static List<RecommendedSong> weightedPick(List<RecommendedSong> pool, int count, float temperature) {
-        if (pool == null || pool.isEmpty() || count <= 0) return new ArrayList<>();
-        if (count >= pool.size()) return new ArrayList<>(pool);
+    private int[] weightedPick(float[] poolScores, int count, float temperature) {
+        int n = poolScores.length;
+        if (n == 0 || count <= 0) return new int[0];
+        if (count >= n) {
+            int[] all = new int[n];
+            for (int i = 0; i < n; i++) all[i] = i;
+            return all;
+        }
 
         float temp = Math.max(0.10f, Math.min(1.50f, temperature));
 
-        List<RecommendedSong> candidates = new ArrayList<>(pool);
-        List<RecommendedSong> result = new ArrayList<>(count);
-
-        for (int pick = 0; pick < count && !candidates.isEmpty(); pick++) {
-            double totalW = 0.0;
-
-            // Softmax-like weighting: w = exp(score/temp)
-            for (RecommendedSong r : candidates) {
-                double w = Math.exp(Math.max(0.0, r.score) / temp);
-                totalW += w;
-            }
-
-            double x = Math.random() * totalW;
-            double run = 0.0;
-            int chosen = candidates.size() - 1;
-
-            for (int i = 0; i < candidates.size(); i++) {
-                RecommendedSong r = candidates.get(i);
-                run += Math.exp(Math.max(0.0, r.score) / temp);
-                if (run >= x) {
-                    chosen = i;
-                    break;
-                }
-            }
+        // Softmax-like weighting: w = exp(score/temp), kept as log-weights (computed once)
+        float[] logW = new float[n];
+        for (int i = 0; i < n; i++) logW[i] = Math.max(0f, poolScores[i]) / temp;
 
-            result.add(candidates.remove(chosen));
-        }
+        return WeightedSampler.sample(logW, count, random);
+    }
 
-        return result;
+    /**
+     * Seed the sampler (tests / reproducible debugging). Same seed + same state => same picks.
+     */
+    public void setRandomSeed(long seed) {
+        random.setSeed(seed);
     }
 
     @Override
     public void close() {
-        try { llmParser.close(); } catch (Exception ignored) {}
+        learningManager.flush();
+        llmManager.close();
         try { database.close(); } catch (Exception ignored) {}
     }
 
@@ -366,6 +660,18 @@ public class AIRecommendationEngine implements AutoCloseable {
         learningManager.recordSongReplayed(currentSongPath);
     }
 
+    public String getQueryCacheStats() {
+        return llmParser.getQueryCache().getStats();
+    }
+
+    public String getLlmStats() {
+        return llmManager.getStats() + "\n" + llmParser.getParseStats();
+    }
+
+    public LlmLifecycleManager getLlmManager() {
+        return llmManager;
+    }
+
     public AILearningManager getLearningManager() {
         return learningManager;
     }
@@ -20,10 +20,20 @@ public final class DBUtils {
     private DBUtils (){};
     public static final String DB_NAME = "music_vectors_ai.db";
     public static final String LOCAL_DB_NAME = "music_vectors_local.db";
+    // ANN index over song embeddings, stored next to LOCAL_DB_NAME
+    public static final String ANN_INDEX_NAME = "music_vectors_local.ann";
 
     public static final String TABLE_SONGS = "songs";
     private static final String TAG = "DBUtils";
 
+    /**
+     * Location of the persisted ANN index (same folder as the local DB).
+     */
+    public static File annIndexFile(Context context) {
+        File localDb = context.getDatabasePath(LOCAL_DB_NAME);
+        return new File(localDb.getParentFile(), ANN_INDEX_NAME);
+    }
+
     public static void addSongToDB(SQLiteStatement stmt, Song song,DBSongData dbSongData) {
     }
     public static File copyDatabase(Context context) {
@@ -0,0 +1,525 @@
+package com.tomersch.mp3playerai.ai;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Approximate nearest-neighbour index (IVF-flat) over song embeddings.
+ *
+ * Vector per song = [PCA(audio_blob) 128d | PCA(meta_blob) 32d], each part L2-normalized and
+ * scaled by sqrt(weight), so a dot product is AUDIO_WEIGHT * cos(audio) + META_WEIGHT * cos(meta).
+ *
+ * Layout:
+ * - nlist spherical k-means centroids (coarse quantizer)
+ * - inverted lists in CSR form (listStart / listRows)
+ * - search probes the nprobe closest lists and scans only those
+ *
+ * Persisted next to music_vectors_local.db, rebuilt when the SongStore fingerprint changes.
+ */
+public final class EmbeddingIndex {
+    private static final String TAG = "EmbeddingIndex";
+
+    private static final int MAGIC = 0x414E4E31; // "ANN1"
+    private static final int FORMAT_VERSION = 1;
+
+    public static final int AUDIO_DIM = 128;
+    public static final int META_DIM = 32;
+    public static final int DIM = AUDIO_DIM + META_DIM;
+
+    private static final float AUDIO_WEIGHT = 0.75f;
+    private static final float META_WEIGHT = 0.25f;
+
+    private static final int KMEANS_ITERATIONS = 8;
+    private static final int KMEANS_TRAIN_PER_LIST = 50;
+    private static final int MAX_LISTS = 256;
+    private static final int DEFAULT_NPROBE = 8;
+    private static final int BUILD_BATCH = 256;  // rows per projection call while building
+
+    private final long fingerprint;
+    private final int storeSize;
+    private final int count;
+    private final float[] vectors;   // count x DIM
+    private final int[] rowSong;     // row -> song id
+    private final int[] songRow;     // song id -> row (-1 = no embedding)
+    private final int nlist;
+    private final float[] centroids; // nlist x DIM
+    private final int[] listStart;   // nlist + 1
+    private final int[] listRows;    // count
+
+    private volatile int nprobe = DEFAULT_NPROBE;
+
+    private EmbeddingIndex(long fingerprint, int storeSize, int count, float[] vectors, int[] rowSong,
+                           int nlist, float[] centroids, int[] listStart, int[] listRows) {
+        this.fingerprint = fingerprint;
+        this.storeSize = storeSize;
+        this.count = count;
+        this.vectors = vectors;
+        this.rowSong = rowSong;
+        this.nlist = nlist;
+        this.centroids = centroids;
+        this.listStart = listStart;
+        this.listRows = listRows;
+
+        this.songRow = new int[storeSize];
+        Arrays.fill(songRow, -1);
+        for (int r = 0; r < count; r++) songRow[rowSong[r]] = r;
+    }
+
+    // ===== PUBLIC API =====
+
+    public int size() {
+        return count;
+    }
+
+    public boolean contains(int songId) {
+        return songId >= 0 && songId < storeSize && songRow[songId] >= 0;
+    }
+
+    /**
+     * Number of inverted lists scanned per query (recall vs speed).
+     */
+    public void setNprobe(int nprobe) {
+        this.nprobe = Math.max(1, nprobe);
+    }
+
+    /**
+     * @return copy of the song's index-space vector, or null if it has no embedding
+     */
+    public float[] vectorOf(int songId) {
+        if (!contains(songId)) return null;
+        int off = songRow[songId] * DIM;
+        return Arrays.copyOfRange(vectors, off, off + DIM);
+    }
+
+    /**
+     * sum += weight * vector(songId), without copying the vector.
+     * @return false if the song has no embedding
+     */
+    public boolean addTo(int songId, float weight, float[] sum) {
+        if (!contains(songId)) return false;
+        int off = songRow[songId] * DIM;
+        for (int i = 0; i < DIM; i++) sum[i] += weight * vectors[off + i];
+        return true;
+    }
+
+    /**
+     * Approximate top-k by cosine similarity.
+     *
+     * @param query         index-space vector (length DIM, need not be normalized)
+     * @param excludeSongId song id to skip (e.g. the seed song), or -1
+     * @return selector sorted best-first; ids are song ids, scores are similarities
+     */
+    public TopKSelector search(float[] query, int k, int excludeSongId) {
+        TopKSelector out = new TopKSelector(Math.max(1, k));
+        if (query == null || query.length != DIM || count == 0 || k <= 0) return out;
+
+        float[] q = query.clone();
+        if (normalize(q, 0, DIM) == 0f) return out;
+
+        int probe = Math.min(nlist, nprobe);
+        TopKSelector lists = new TopKSelector(probe);
+        for (int c = 0; c < nlist; c++) lists.offer(dot(centroids, c * DIM, q), c);
+
+        for (int i = 0; i < lists.size(); i++) {
+            int c = lists.idAt(i);
+            for (int j = listStart[c]; j < listStart[c + 1]; j++) {
+                int row = listRows[j];
+                int song = rowSong[row];
+                if (song == excludeSongId) continue;
+                out.offer(dot(vectors, row * DIM, q), song);
+            }
+        }
+
+        out.sortDescending();
+        return out;
+    }
+
+    // ===== LOAD / BUILD =====
+
+    /**
+     * Load the persisted index if it matches the store, otherwise build it from the
+     * songs table and persist it. Returns null if no song has a usable embedding.
+     */
+    public static EmbeddingIndex loadOrBuild(Context context, SQLiteDatabase db, SongStore store) {
+        File file = DBUtils.annIndexFile(context);
+        long fp = store.fingerprint();
+
+        if (file.exists()) {
+            try {
+                EmbeddingIndex idx = load(file);
+                if (idx.fingerprint == fp && idx.storeSize == store.size) {
+                    Log.d(TAG, "Loaded index: " + idx.count + " vectors, " + idx.nlist + " lists");
+                    return idx;
+                }
+                Log.d(TAG, "Index is stale (library changed), rebuilding");
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to load index, rebuilding", e);
+            }
+        }
+
+        EmbeddingIndex idx;
+        try {
+            idx = build(context, db, store);
+        } catch (Exception e) {
+            Log.e(TAG, "Index build failed", e);
+            return null;
+        }
+        if (idx == null) return null;
+
+        try {
+            idx.save(file);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to persist index", e);
+        }
+        return idx;
+    }
+
+    private static EmbeddingIndex build(Context context, SQLiteDatabase db, SongStore store) throws IOException {
+        long start = System.currentTimeMillis();
+
+        PartBatch audio = new PartBatch(
+                PcaProjector.fromAsset(context, PcaProjector.AUDIO_COMPONENTS_ASSET), AUDIO_WEIGHT);
+        PartBatch meta = new PartBatch(
+                PcaProjector.fromAsset(context, PcaProjector.META_COMPONENTS_ASSET), META_WEIGHT);
+
+        float[] vectors = new float[store.size * DIM];
+        int[] rowSong = new int[store.size];
+        boolean[] seen = new boolean[store.size];
+        int[] batchSong = new int[BUILD_BATCH];
+        int inBatch = 0;
+        int count = 0;
+
+        // One pass over the table, projecting BUILD_BATCH rows per kernel call
+        try (Cursor cursor = db.rawQuery(
+                "SELECT path, audio_blob, meta_blob FROM " + DBUtils.TABLE_SONGS, null)) {
+            while (cursor.moveToNext()) {
+                int id = store.idOf(cursor.getString(0));
+                if (id < 0 || seen[id]) continue;
+                seen[id] = true;
+
+                audio.add(inBatch, cursor.getBlob(1));
+                meta.add(inBatch, cursor.getBlob(2));
+                batchSong[inBatch++] = id;
+
+                if (inBatch == BUILD_BATCH) {
+                    count = flushBatch(audio, meta, batchSong, inBatch, vectors, rowSong, count);
+                    inBatch = 0;
+                }
+            }
+        }
+        count = flushBatch(audio, meta, batchSong, inBatch, vectors, rowSong, count);
+
+        if (count == 0) {
+            Log.w(TAG, "No embeddings found in songs table, index not built");
+            return null;
+        }
+
+        EmbeddingIndex idx = fromVectors(store.fingerprint(), store.size, vectors, rowSong, count);
+        Log.d(TAG, "Built index: " + count + "/" + store.size + " songs, " + idx.nlist + " lists in " +
+                (System.currentTimeMillis() - start) + "ms");
+        return idx;
+    }
+
+    /**
+     * Project the pending rows and append the ones with at least one embedding part.
+     * @return new row count
+     */
+    private static int flushBatch(PartBatch audio, PartBatch meta, int[] batchSong, int n,
+                                  float[] vectors, int[] rowSong, int count) {
+        audio.project();
+        meta.project();
+
+        for (int i = 0; i < n; i++) {
+            int off = count * DIM;
+            boolean hasAudio = audio.write(i, vectors, off);
+            boolean hasMeta = meta.write(i, vectors, off + AUDIO_DIM);
+            if (!hasAudio && !hasMeta) continue;
+            normalize(vectors, off, DIM);
+            rowSong[count++] = batchSong[i];
+        }
+
+        audio.reset();
+        meta.reset();
+        return count;
+    }
+
+    /**
+     * Pending embedding blobs of one part (audio or meta) for a batch of rows.
+     * Full-size blobs are packed for one projectBatch call, blobs already at outDim are kept as-is.
+     */
+    private static final class PartBatch {
+        private static final int MISSING = -1;
+        private static final int REDUCED = -2;
+
+        final PcaProjector pca;
+        final int inDim;
+        final int outDim;
+        final float weight;
+
+        final float[] raw;        // packed BUILD_BATCH x inDim
+        final float[] projected;  // packed BUILD_BATCH x outDim
+        final float[] reduced;    // by batch row, BUILD_BATCH x outDim
+        final int[] slot = new int[BUILD_BATCH];
+        int pending;
+
+        PartBatch(PcaProjector pca, float weight) {
+            this.pca = pca;
+            this.inDim = pca.inDim;
+            this.outDim = pca.outDim;
+            this.weight = (float) Math.sqrt(weight);
+            this.raw = new float[BUILD_BATCH * inDim];
+            this.projected = new float[BUILD_BATCH * outDim];
+            this.reduced = new float[BUILD_BATCH * outDim];
+        }
+
+        void add(int row, byte[] blob) {
+            int floats = blob == null || blob.length % 4 != 0 ? 0 : blob.length / 4;
+            if (floats == inDim) {
+                decode(blob, raw, pending * inDim, inDim);
+                slot[row] = pending++;
+            } else if (floats == outDim) {
+                decode(blob, reduced, row * outDim, outDim);
+                slot[row] = REDUCED;
+            } else {
+                slot[row] = MISSING;
+            }
+        }
+
+        void project() {
+            if (pending > 0) pca.projectBatch(raw, pending, projected);
+        }
+
+        /**
+         * Copy row's reduced vector into dest[off..off+outDim), normalized and weighted.
+         */
+        boolean write(int row, float[] dest, int off) {
+            int s = slot[row];
+            if (s == MISSING) {
+                Arrays.fill(dest, off, off + outDim, 0f);
+                return false;
+            }
+            if (s == REDUCED) System.arraycopy(reduced, row * outDim, dest, off, outDim);
+            else System.arraycopy(projected, s * outDim, dest, off, outDim);
+
+            if (normalize(dest, off, outDim) == 0f) return false;
+            for (int i = 0; i < outDim; i++) dest[off + i] *= weight;
+            return true;
+        }
+
+        void reset() {
+            pending = 0;
+        }
+
+        private static void decode(byte[] blob, float[] dest, int off, int n) {
+            ByteBuffer.wrap(blob).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(dest, off, n);
+        }
+    }
+
+    /**
+     * Train the coarse quantizer (spherical k-means) and bucket every vector.
+     */
+    static EmbeddingIndex fromVectors(long fingerprint, int storeSize, float[] vectors, int[] rowSong, int count) {
+        int nlist = Math.max(1, Math.min(MAX_LISTS, (int) Math.sqrt(count) / 2));
+        Random rng = new Random(42); // deterministic builds
+
+        float[] centroids = trainCentroids(vectors, count, nlist, rng);
+
+        int[] assign = new int[count];
+        int[] listSize = new int[nlist];
+        for (int r = 0; r < count; r++) {
+            int c = nearestCentroid(centroids, nlist, vectors, r * DIM);
+            assign[r] = c;
+            listSize[c]++;
+        }
+
+        int[] listStart = new int[nlist + 1];
+        for (int c = 0; c < nlist; c++) listStart[c + 1] = listStart[c] + listSize[c];
+        int[] fill = Arrays.copyOf(listStart, nlist);
+        int[] listRows = new int[count];
+        for (int r = 0; r < count; r++) listRows[fill[assign[r]]++] = r;
+
+        return new EmbeddingIndex(fingerprint, storeSize, count,
+                Arrays.copyOf(vectors, count * DIM), Arrays.copyOf(rowSong, count),
+                nlist, centroids, listStart, listRows);
+    }
+
+    private static float[] trainCentroids(float[] vectors, int count, int nlist, Random rng) {
+        // Training sample (partial Fisher-Yates)
+        int[] perm = new int[count];
+        for (int i = 0; i < count; i++) perm[i] = i;
+        int nTrain = Math.min(count, nlist * KMEANS_TRAIN_PER_LIST);
+        for (int i = 0; i < nTrain; i++) {
+            int j = i + rng.nextInt(count - i);
+            int t = perm[i];
+            perm[i] = perm[j];
+            perm[j] = t;
+        }
+
+        float[] centroids = new float[nlist * DIM];
+        for (int c = 0; c < nlist; c++) {
+            System.arraycopy(vectors, perm[c % nTrain] * DIM, centroids, c * DIM, DIM);
+        }
+
+        float[] sums = new float[nlist * DIM];
+        int[] sizes = new int[nlist];
+
+        for (int iter = 0; iter < KMEANS_ITERATIONS; iter++) {
+            Arrays.fill(sums, 0f);
+            Arrays.fill(sizes, 0);
+
+            for (int i = 0; i < nTrain; i++) {
+                int off = perm[i] * DIM;
+                int c = nearestCentroid(centroids, nlist, vectors, off);
+                sizes[c]++;
+                int co = c * DIM;
+                for (int d = 0; d < DIM; d++) sums[co + d] += vectors[off + d];
+            }
+
+            for (int c = 0; c < nlist; c++) {
+                int co = c * DIM;
+                if (sizes[c] == 0) {
+                    // Empty cluster: reseed from a random training point
+                    System.arraycopy(vectors, perm[rng.nextInt(nTrain)] * DIM, centroids, co, DIM);
+                    continue;
+                }
+                System.arraycopy(sums, co, centroids, co, DIM);
+                normalize(centroids, co, DIM);
+            }
+        }
+        return centroids;
+    }
+
+    private static int nearestCentroid(float[] centroids, int nlist, float[] v, int off) {
+        int best = 0;
+        float bestDot = Float.NEGATIVE_INFINITY;
+        for (int c = 0; c < nlist; c++) {
+            float d = 0f;
+            int co = c * DIM;
+            for (int i = 0; i < DIM; i++) d += centroids[co + i] * v[off + i];
+            if (d > bestDot) {
+                bestDot = d;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    // ===== MATH =====
+
+    private static float dot(float[] a, int off, float[] q) {
+        float s = 0f;
+        for (int i = 0; i < DIM; i++) s += a[off + i] * q[i];
+        return s;
+    }
+
+    /** Normalize in place, returns the original norm. */
+    private static float normalize(float[] v, int off, int len) {
+        double ss = 0.0;
+        for (int i = 0; i < len; i++) ss += (double) v[off + i] * v[off + i];
+        float norm = (float) Math.sqrt(ss);
+        if (norm == 0f) return 0f;
+        float inv = 1f / norm;
+        for (int i = 0; i < len; i++) v[off + i] *= inv;
+        return norm;
+    }
+
+    // ===== PERSISTENCE =====
+
+    private void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+             FileChannel ch = raf.getChannel()) {
+            raf.setLength(0);
+            ByteBuffer buf = ByteBuffer.allocateDirect(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+
+            buf.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(DIM)
+                    .putInt(storeSize).putInt(count).putInt(nlist).putLong(fingerprint);
+
+            buf = writeFloats(ch, buf, vectors, count * DIM);
+            buf = writeInts(ch, buf, rowSong, count);
+            buf = writeFloats(ch, buf, centroids, nlist * DIM);
+            buf = writeInts(ch, buf, listStart, nlist + 1);
+            buf = writeInts(ch, buf, listRows, count);
+
+            buf.flip();
+            while (buf.hasRemaining()) ch.write(buf);
+            ch.force(false);
+        }
+        if (!tmp.renameTo(file)) throw new IOException("rename failed: " + tmp);
+        Log.d(TAG, "Saved index to " + file.getPath() + " (" + file.length() / 1024 + " KB)");
+    }
+
+    private static ByteBuffer writeFloats(FileChannel ch, ByteBuffer buf, float[] a, int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            if (buf.remaining() < 4) buf = drain(ch, buf);
+            buf.putFloat(a[i]);
+        }
+        return buf;
+    }
+
+    private static ByteBuffer writeInts(FileChannel ch, ByteBuffer buf, int[] a, int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            if (buf.remaining() < 4) buf = drain(ch, buf);
+            buf.putInt(a[i]);
+        }
+        return buf;
+    }
+
+    private static ByteBuffer drain(FileChannel ch, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) ch.write(buf);
+        buf.clear();
+        return buf;
+    }
+
+    private static EmbeddingIndex load(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel ch = raf.getChannel()) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (buf.getInt() != MAGIC) throw new IOException("Bad magic");
+            if (buf.getInt() != FORMAT_VERSION) throw new IOException("Unsupported version");
+            if (buf.getInt() != DIM) throw new IOException("Dimension mismatch");
+            int storeSize = buf.getInt();
+            int count = buf.getInt();
+            int nlist = buf.getInt();
+            long fingerprint = buf.getLong();
+
+            float[] vectors = readFloats(buf, count * DIM);
+            int[] rowSong = readInts(buf, count);
+            float[] centroids = readFloats(buf, nlist * DIM);
+            int[] listStart = readInts(buf, nlist + 1);
+            int[] listRows = readInts(buf, count);
+
+            return new EmbeddingIndex(fingerprint, storeSize, count, vectors, rowSong,
+                    nlist, centroids, listStart, listRows);
+        }
+    }
+
+    private static float[] readFloats(ByteBuffer buf, int n) {
+        float[] out = new float[n];
+        buf.asFloatBuffer().get(out);
+        buf.position(buf.position() + n * 4);
+        return out;
+    }
+
+    private static int[] readInts(ByteBuffer buf, int n) {
+        int[] out = new int[n];
+        buf.asIntBuffer().get(out);
+        buf.position(buf.position() + n * 4);
+        return out;
+    }
+}
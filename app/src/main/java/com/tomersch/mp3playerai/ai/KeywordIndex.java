@@ -0,0 +1,290 @@
+package com.tomersch.mp3playerai.ai;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Inverted index over title / artist / genre / tags / filename for keyword scoring.
+ *
+ * - Tokens: lowercase runs of letters/digits (length >= 2), tokenized once per pooled string
+ * - Postings per token in CSR form (song ids ascending), each with a BM25F weighted term frequency
+ * - Query terms match by prefix ("rock" hits "rock", "rocks", "rockabilly") via the sorted dictionary
+ *
+ * Query cost is proportional to the matching postings, songs without a match are never touched
+ * (the per-query scratch arrays are allocated once and reset sparsely, see Scratch).
+ */
+public final class KeywordIndex {
+    // BM25 parameters
+    private static final float K1 = 1.2f;
+    private static final float B = 0.75f;
+    private static final int MIN_TOKEN_LENGTH = 2;
+
+    // Field weights: title, artist, genre, tags, filename
+    private static final float[] FIELD_WEIGHTS = {3.0f, 2.5f, 2.0f, 1.5f, 1.0f};
+    private static final int FIELD_COUNT = FIELD_WEIGHTS.length;
+
+    final SongStore store;
+
+    private final String[] terms;      // sorted
+    private final int[] postingStart;  // CSR: term t -> [postingStart[t], postingStart[t+1])
+    private final int[] postingSong;
+    private final float[] postingTf;   // weighted, length-normalized tf
+
+    // Reused by score(); a concurrent caller finds it taken and allocates its own
+    private final AtomicReference<Scratch> scratch = new AtomicReference<>();
+
+    private KeywordIndex(SongStore store, String[] terms,
+                         int[] postingStart, int[] postingSong, float[] postingTf) {
+        this.store = store;
+        this.terms = terms;
+        this.postingStart = postingStart;
+        this.postingSong = postingSong;
+        this.postingTf = postingTf;
+    }
+
+    public int termCount() {
+        return terms.length;
+    }
+
+    public int postingCount() {
+        return postingSong.length;
+    }
+
+    // =========================
+    // Query
+    // =========================
+
+    /**
+     * Per-song keyword score in 0..1 (dense, indexed by song id), or null when there is nothing to match.
+     *
+     * Each keyword is BM25-scored and scaled so its best matching song gets 1; the result is the
+     * average over keywords, so a song matching every keyword well approaches 1.
+     */
+    public float[] score(String[] keywords) {
+        if (keywords == null || keywords.length == 0) return null;
+
+        Scratch sc = scratch.getAndSet(null);
+        if (sc == null) sc = new Scratch(store.size);
+        float[] out = new float[store.size];
+        float[] acc = sc.acc;
+        float[] best = sc.best;
+        int[] touched = sc.touched;
+        int[] termTouched = sc.termTouched;
+
+        for (String keyword : keywords) {
+            int nTouched = 0;
+
+            for (String term : tokenize(keyword)) {
+                // Prefix expansions are alternatives of one term: idf from their combined df,
+                // best saturated tf per song (rare expansions must not outscore the plain term)
+                int lo = lowerBound(term);
+                int hi = lo;
+                int df = 0;
+                while (hi < terms.length && terms[hi].startsWith(term)) {
+                    df += postingStart[hi + 1] - postingStart[hi];
+                    hi++;
+                }
+                if (df == 0) continue;
+                float w = idf(Math.min(df, store.size), store.size);
+
+                int nTerm = 0;
+                for (int t = lo; t < hi; t++) {
+                    for (int p = postingStart[t]; p < postingStart[t + 1]; p++) {
+                        int id = postingSong[p];
+                        float tf = postingTf[p];
+                        float v = w * tf * (K1 + 1f) / (tf + K1);
+                        if (best[id] == 0f) {
+                            if (nTerm == termTouched.length) termTouched = Arrays.copyOf(termTouched, nTerm * 2);
+                            termTouched[nTerm++] = id;
+                        }
+                        if (v > best[id]) best[id] = v;
+                    }
+                }
+
+                for (int i = 0; i < nTerm; i++) {
+                    int id = termTouched[i];
+                    if (acc[id] == 0f) {
+                        if (nTouched == touched.length) touched = Arrays.copyOf(touched, nTouched * 2);
+                        touched[nTouched++] = id;
+                    }
+                    acc[id] += best[id];
+                    best[id] = 0f;
+                }
+            }
+
+            float max = 0f;
+            for (int i = 0; i < nTouched; i++) max = Math.max(max, acc[touched[i]]);
+            float scale = max > 0f ? 1f / (max * keywords.length) : 0f;
+            for (int i = 0; i < nTouched; i++) {
+                int id = touched[i];
+                out[id] += acc[id] * scale;
+                acc[id] = 0f;
+            }
+        }
+
+        // acc / best are all zero again (reset through the touched lists); keep grown id lists
+        sc.touched = touched;
+        sc.termTouched = termTouched;
+        scratch.set(sc);
+        return out;
+    }
+
+    /**
+     * Per-query working arrays, indexed by song id. Invariant between queries: acc and best are all zero.
+     */
+    private static final class Scratch {
+        final float[] acc;    // current keyword
+        final float[] best;   // current query term, best prefix expansion
+        int[] touched = new int[16];
+        int[] termTouched = new int[16];
+
+        Scratch(int size) {
+            acc = new float[size];
+            best = new float[size];
+        }
+    }
+
+    private static float idf(int df, int n) {
+        return (float) Math.log(1.0 + (n - df + 0.5) / (df + 0.5));
+    }
+
+    private int lowerBound(String prefix) {
+        int lo = 0, hi = terms.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (terms[mid].compareTo(prefix) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    // =========================
+    // Build
+    // =========================
+
+    public static KeywordIndex build(SongStore store) {
+        SongStore.StringPool pool = store.strings;
+        int n = store.size;
+
+        // Tokenize each distinct pooled string once (artists/genres repeat across many songs)
+        Map<String, Integer> termIds = new HashMap<>();
+        List<String> termList = new ArrayList<>();
+        int[][] refTokens = new int[pool.size()][];
+        for (int ref = 1; ref < pool.size(); ref++) {
+            List<String> tokens = tokenize(pool.lower(ref));
+            int[] ids = new int[tokens.size()];
+            for (int i = 0; i < ids.length; i++) {
+                String tok = tokens.get(i);
+                Integer id = termIds.get(tok);
+                if (id == null) {
+                    id = termList.size();
+                    termIds.put(tok, id);
+                    termList.add(tok);
+                }
+                ids[i] = id;
+            }
+            refTokens[ref] = ids;
+        }
+        refTokens[0] = new int[0];
+
+        int[][] fieldRefs = {store.titleRef, store.artistRef, store.genreRef, store.tagsRef, store.filenameRef};
+
+        // Average field lengths for BM25 length normalization
+        float[] avgLen = new float[FIELD_COUNT];
+        for (int f = 0; f < FIELD_COUNT; f++) {
+            long total = 0;
+            for (int id = 0; id < n; id++) total += refTokens[fieldRefs[f][id]].length;
+            avgLen[f] = n == 0 ? 1f : Math.max(1f, (float) total / n);
+        }
+
+        // Postings as (term, song, tf) in song order
+        int[] pTerm = new int[Math.max(16, n * 4)];
+        int[] pSong = new int[pTerm.length];
+        float[] pTf = new float[pTerm.length];
+        int count = 0;
+
+        int[] songTerms = new int[32];
+        float[] songTf = new float[32];
+        for (int id = 0; id < n; id++) {
+            int distinct = 0;
+            for (int f = 0; f < FIELD_COUNT; f++) {
+                int[] toks = refTokens[fieldRefs[f][id]];
+                if (toks.length == 0) continue;
+                float w = FIELD_WEIGHTS[f] / (1f - B + B * toks.length / avgLen[f]);
+
+                for (int tok : toks) {
+                    int j = 0;
+                    while (j < distinct && songTerms[j] != tok) j++;
+                    if (j == distinct) {
+                        if (distinct == songTerms.length) {
+                            songTerms = Arrays.copyOf(songTerms, distinct * 2);
+                            songTf = Arrays.copyOf(songTf, distinct * 2);
+                        }
+                        songTerms[j] = tok;
+                        songTf[j] = 0f;
+                        distinct++;
+                    }
+                    songTf[j] += w;
+                }
+            }
+
+            if (count + distinct > pTerm.length) {
+                int cap = Math.max(pTerm.length * 2, count + distinct);
+                pTerm = Arrays.copyOf(pTerm, cap);
+                pSong = Arrays.copyOf(pSong, cap);
+                pTf = Arrays.copyOf(pTf, cap);
+            }
+            for (int j = 0; j < distinct; j++) {
+                pTerm[count] = songTerms[j];
+                pSong[count] = id;
+                pTf[count] = songTf[j];
+                count++;
+            }
+        }
+
+        // Sort the dictionary so prefix lookups are a binary search + scan
+        int termCount = termList.size();
+        String[] sorted = termList.toArray(new String[0]);
+        Arrays.sort(sorted);
+        int[] remap = new int[termCount];
+        for (int t = 0; t < termCount; t++) remap[termIds.get(sorted[t])] = t;
+
+        // CSR by sorted term id (counting sort keeps song order within a term)
+        int[] start = new int[termCount + 1];
+        for (int i = 0; i < count; i++) start[remap[pTerm[i]] + 1]++;
+        for (int t = 0; t < termCount; t++) start[t + 1] += start[t];
+
+        int[] fill = Arrays.copyOf(start, termCount);
+        int[] songs = new int[count];
+        float[] tfs = new float[count];
+        for (int i = 0; i < count; i++) {
+            int p = fill[remap[pTerm[i]]]++;
+            songs[p] = pSong[i];
+            tfs[p] = pTf[i];
+        }
+
+        return new KeywordIndex(store, sorted, start, songs, tfs);
+    }
+
+    /**
+     * Lowercase letter/digit runs of at least MIN_TOKEN_LENGTH chars.
+     */
+    static List<String> tokenize(String text) {
+        List<String> out = new ArrayList<>();
+        if (text == null) return out;
+
+        int len = text.length();
+        int i = 0;
+        while (i < len) {
+            while (i < len && !Character.isLetterOrDigit(text.charAt(i))) i++;
+            int s = i;
+            while (i < len && Character.isLetterOrDigit(text.charAt(i))) i++;
+            if (i - s >= MIN_TOKEN_LENGTH) out.add(text.substring(s, i).toLowerCase());
+        }
+        return out;
+    }
+}
@@ -0,0 +1,440 @@
+package com.tomersch.mp3playerai.ai;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * On-disk storage for AILearningManager: a binary checkpoint plus append-only event journals.
+ *
+ * Files (in files/ai_learning/):
+ * - learning.ckpt      full state + path dictionary, and the seq of the first journal it does NOT include
+ * - journal.<seq>      events since that checkpoint, fixed-size records
+ *
+ * Journal records:
+ * - DEFINE_PATH [type][id:int][path:UTF]          assigns the next dictionary id
+ * - event       [type][id:int][time:long][value:float]
+ *
+ * Compaction = rotate() under the owner's lock (new journal, fresh dictionary) and
+ * writeCheckpoint() in the background; older journals are deleted once the checkpoint is renamed in.
+ * Startup cost is one checkpoint read + at most one journal's worth of replay.
+ */
+final class LearningJournal {
+    private static final String TAG = "LearningJournal";
+
+    static final byte PLAYED = 1;
+    static final byte SKIPPED = 2;
+    static final byte COMPLETED = 3;
+    static final byte REPLAYED = 4;
+    static final byte RECOMMENDED = 5;
+    static final byte SET_SCORE = 6;
+    static final byte RESET = 7;
+    private static final byte DEFINE_PATH = 0;
+
+    private static final int MAGIC = 0x414C4A31; // "ALJ1"
+    private static final int FORMAT_VERSION = 2;
+
+    private static final String DIR_NAME = "ai_learning";
+    private static final String CHECKPOINT_NAME = "learning.ckpt";
+    private static final String JOURNAL_PREFIX = "journal.";
+
+    interface Listener {
+        void onEvent(byte type, String path, long timestamp, float value);
+    }
+
+    /**
+     * The learning state as stored in a checkpoint. Live instances wrap the owner's collections.
+     */
+    static final class State {
+        final Map<String, Float> songScores;
+        final Map<String, Float> moodPreferences;
+        final List<String> playHistory;
+        final List<String> skipHistory;
+        final Map<String, Long> lastPlayedAt;
+        final Map<String, Long> lastRecommendedAt;
+        final Set<String> playedSongs;
+
+        State(Map<String, Float> songScores, Map<String, Float> moodPreferences,
+              List<String> playHistory, List<String> skipHistory,
+              Map<String, Long> lastPlayedAt, Map<String, Long> lastRecommendedAt,
+              Set<String> playedSongs) {
+            this.songScores = songScores;
+            this.moodPreferences = moodPreferences;
+            this.playHistory = playHistory;
+            this.skipHistory = skipHistory;
+            this.lastPlayedAt = lastPlayedAt;
+            this.lastRecommendedAt = lastRecommendedAt;
+            this.playedSongs = playedSongs;
+        }
+
+        State copy() {
+            return new State(new HashMap<>(songScores), new HashMap<>(moodPreferences),
+                    new ArrayList<>(playHistory), new ArrayList<>(skipHistory),
+                    new HashMap<>(lastPlayedAt), new HashMap<>(lastRecommendedAt),
+                    new HashSet<>(playedSongs));
+        }
+    }
+
+    /**
+     * State copy + the journal seq it was cut at, ready to be written off the lock.
+     */
+    static final class Checkpoint {
+        final State state;
+        final int journalSeq;
+
+        Checkpoint(State state, int journalSeq) {
+            this.state = state;
+            this.journalSeq = journalSeq;
+        }
+    }
+
+    private final File dir;
+
+    // Dictionary of the current journal (ids restart at every rotation)
+    private final Map<String, Integer> pathIds = new HashMap<>();
+    private int journalSeq;
+    private DataOutputStream out;
+    private long journalBytes;
+
+    LearningJournal(File filesDir) {
+        this.dir = new File(filesDir, DIR_NAME);
+    }
+
+    boolean exists() {
+        return checkpointFile().exists() || !journalSeqs().isEmpty();
+    }
+
+    long journalBytes() {
+        return journalBytes;
+    }
+
+    // =========================
+    // Load / replay
+    // =========================
+
+    /**
+     * Read the checkpoint into target, replay newer journals through listener and open the
+     * current journal for appending (a torn last record from a crash is cut off first).
+     */
+    void open(State target, Listener listener) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) throw new IOException("mkdirs failed: " + dir);
+
+        journalSeq = 0;
+        File ckpt = checkpointFile();
+        if (ckpt.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(ckpt)))) {
+                journalSeq = readCheckpoint(in, target);
+            }
+        }
+
+        List<Integer> seqs = journalSeqs();
+        int replayed = 0;
+        long validBytes = 0;
+        for (int seq : seqs) {
+            File f = journalFile(seq);
+            if (seq < journalSeq) {
+                // Already folded into the checkpoint (delete was interrupted)
+                if (!f.delete()) Log.w(TAG, "Could not delete " + f);
+                continue;
+            }
+            long[] stats = replay(f, listener);
+            replayed += (int) stats[0];
+            validBytes = stats[1];
+            journalSeq = seq;
+        }
+
+        // Append to the newest journal, truncated to its last complete record
+        File current = journalFile(journalSeq);
+        if (current.exists()) {
+            try (RandomAccessFile raf = new RandomAccessFile(current, "rw")) {
+                if (raf.length() != validBytes) raf.setLength(validBytes);
+            }
+            // Dictionary of an existing journal was rebuilt by replay()
+        } else {
+            validBytes = 0;
+            pathIds.clear();
+        }
+        journalBytes = validBytes;
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(current, true), 8 * 1024));
+
+        Log.d(TAG, "Opened learning journal: seq=" + journalSeq + ", replayed " + replayed + " events");
+    }
+
+    /**
+     * @return {events, bytes up to the end of the last complete record}
+     */
+    private long[] replay(File f, Listener listener) throws IOException {
+        List<String> paths = new ArrayList<>();
+        pathIds.clear();
+        long events = 0;
+        long valid = 0;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            while (true) {
+                byte type = in.readByte();
+                int id = in.readInt();
+                if (type == DEFINE_PATH) {
+                    String path = in.readUTF();
+                    if (id != paths.size()) {
+                        Log.w(TAG, "Corrupt dictionary record in " + f + ", replay stops here");
+                        break;
+                    }
+                    paths.add(path);
+                    pathIds.put(path, id);
+                    valid += 1 + 4 + 2 + utfLength(path);
+                } else {
+                    long time = in.readLong();
+                    float value = in.readFloat();
+                    valid += 1 + 4 + 8 + 4;
+                    String path = (id >= 0 && id < paths.size()) ? paths.get(id) : null;
+                    listener.onEvent(type, path, time, value);
+                    events++;
+                }
+            }
+        } catch (EOFException end) {
+            // Normal end, or a record torn by a crash (dropped)
+        }
+        return new long[]{events, valid};
+    }
+
+    // =========================
+    // Append
+    // =========================
+
+    /**
+     * Buffer one event (not durable until flush()). path may be null for RESET.
+     */
+    void append(byte type, String path, long timestamp, float value) throws IOException {
+        int id = -1;
+        if (path != null) {
+            Integer known = pathIds.get(path);
+            if (known == null) {
+                id = pathIds.size();
+                pathIds.put(path, id);
+                out.writeByte(DEFINE_PATH);
+                out.writeInt(id);
+                out.writeUTF(path);
+                journalBytes += 1 + 4 + 2 + utfLength(path);
+            } else {
+                id = known;
+            }
+        }
+        out.writeByte(type);
+        out.writeInt(id);
+        out.writeLong(timestamp);
+        out.writeFloat(value);
+        journalBytes += 1 + 4 + 8 + 4;
+    }
+
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    // =========================
+    // Compaction
+    // =========================
+
+    /**
+     * Start a new journal and cut a checkpoint of state (caller holds the owner's lock).
+     * Events appended from now on go to the new journal; write the result with writeCheckpoint().
+     */
+    Checkpoint rotate(State state) throws IOException {
+        out.flush();
+        out.close();
+
+        journalSeq++;
+        pathIds.clear();
+        journalBytes = 0;
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile(journalSeq), false), 8 * 1024));
+
+        return new Checkpoint(state.copy(), journalSeq);
+    }
+
+    /**
+     * Write a checkpoint (tmp + rename) and drop the journals it covers. Background thread.
+     */
+    void writeCheckpoint(Checkpoint cp) throws IOException {
+        long start = System.currentTimeMillis();
+        File tmp = new File(dir, CHECKPOINT_NAME + ".tmp");
+
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             DataOutputStream os = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024))) {
+            writeState(os, cp.state, cp.journalSeq);
+            os.flush();
+            fos.getFD().sync();
+        }
+        if (!tmp.renameTo(checkpointFile())) throw new IOException("rename failed: " + tmp);
+
+        for (int seq : journalSeqs()) {
+            if (seq < cp.journalSeq && !journalFile(seq).delete()) {
+                Log.w(TAG, "Could not delete journal " + seq);
+            }
+        }
+        Log.d(TAG, "Checkpoint written (seq " + cp.journalSeq + ", " + cp.state.songScores.size() +
+                " scores) in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    void close() {
+        try {
+            if (out != null) out.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Close failed", e);
+        }
+    }
+
+    // =========================
+    // Checkpoint format
+    // =========================
+
+    private static void writeState(DataOutputStream os, State s, int journalSeq) throws IOException {
+        // Fresh dictionary of every path the state references
+        Map<String, Integer> ids = new HashMap<>();
+        List<String> paths = new ArrayList<>();
+        collect(s.songScores.keySet(), ids, paths);
+        collect(s.lastPlayedAt.keySet(), ids, paths);
+        collect(s.lastRecommendedAt.keySet(), ids, paths);
+        collect(s.playHistory, ids, paths);
+        collect(s.skipHistory, ids, paths);
+        collect(s.playedSongs, ids, paths);
+
+        os.writeInt(MAGIC);
+        os.writeInt(FORMAT_VERSION);
+        os.writeInt(journalSeq);
+
+        os.writeInt(paths.size());
+        for (String p : paths) os.writeUTF(p);
+
+        os.writeInt(s.songScores.size());
+        for (Map.Entry<String, Float> e : s.songScores.entrySet()) {
+            os.writeInt(ids.get(e.getKey()));
+            os.writeFloat(e.getValue());
+        }
+        writeTimes(os, s.lastPlayedAt, ids);
+        writeTimes(os, s.lastRecommendedAt, ids);
+        writeHistory(os, s.playHistory, ids);
+        writeHistory(os, s.skipHistory, ids);
+
+        os.writeInt(s.moodPreferences.size());
+        for (Map.Entry<String, Float> e : s.moodPreferences.entrySet()) {
+            os.writeUTF(e.getKey());
+            os.writeFloat(e.getValue());
+        }
+
+        os.writeInt(s.playedSongs.size());
+        for (String p : s.playedSongs) os.writeInt(ids.get(p));
+    }
+
+    /**
+     * @return journal seq the checkpoint was cut at
+     */
+    private static int readCheckpoint(DataInputStream in, State s) throws IOException {
+        if (in.readInt() != MAGIC) throw new IOException("Bad checkpoint magic");
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) throw new IOException("Unsupported checkpoint version " + version);
+        int journalSeq = in.readInt();
+
+        String[] paths = new String[in.readInt()];
+        for (int i = 0; i < paths.length; i++) paths[i] = in.readUTF();
+
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) s.songScores.put(paths[in.readInt()], in.readFloat());
+        readTimes(in, s.lastPlayedAt, paths);
+        readTimes(in, s.lastRecommendedAt, paths);
+        readHistory(in, s.playHistory, paths);
+        readHistory(in, s.skipHistory, paths);
+
+        n = in.readInt();
+        for (int i = 0; i < n; i++) s.moodPreferences.put(in.readUTF(), in.readFloat());
+
+        n = in.readInt();
+        for (int i = 0; i < n; i++) s.playedSongs.add(paths[in.readInt()]);
+
+        return journalSeq;
+    }
+
+    private static void collect(Iterable<String> keys, Map<String, Integer> ids, List<String> paths) {
+        for (String k : keys) {
+            if (!ids.containsKey(k)) {
+                ids.put(k, paths.size());
+                paths.add(k);
+            }
+        }
+    }
+
+    private static void writeTimes(DataOutputStream os, Map<String, Long> m, Map<String, Integer> ids) throws IOException {
+        os.writeInt(m.size());
+        for (Map.Entry<String, Long> e : m.entrySet()) {
+            os.writeInt(ids.get(e.getKey()));
+            os.writeLong(e.getValue());
+        }
+    }
+
+    private static void readTimes(DataInputStream in, Map<String, Long> m, String[] paths) throws IOException {
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) m.put(paths[in.readInt()], in.readLong());
+    }
+
+    private static void writeHistory(DataOutputStream os, List<String> h, Map<String, Integer> ids) throws IOException {
+        os.writeInt(h.size());
+        for (String p : h) os.writeInt(ids.get(p));
+    }
+
+    private static void readHistory(DataInputStream in, List<String> h, String[] paths) throws IOException {
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) h.add(paths[in.readInt()]);
+    }
+
+    // =========================
+    // Files
+    // =========================
+
+    private File checkpointFile() {
+        return new File(dir, CHECKPOINT_NAME);
+    }
+
+    private File journalFile(int seq) {
+        return new File(dir, JOURNAL_PREFIX + seq);
+    }
+
+    private List<Integer> journalSeqs() {
+        List<Integer> seqs = new ArrayList<>();
+        String[] names = dir.list();
+        if (names == null) return seqs;
+        for (String name : names) {
+            if (!name.startsWith(JOURNAL_PREFIX)) continue;
+            try {
+                seqs.add(Integer.parseInt(name.substring(JOURNAL_PREFIX.length())));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        Collections.sort(seqs);
+        return seqs;
+    }
+
+    private static int utfLength(String s) {
+        int len = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) len++;
+            else if (c > 0x07FF) len += 3;
+            else len += 2;
+        }
+        return len;
+    }
+}
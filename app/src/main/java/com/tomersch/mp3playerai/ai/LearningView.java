@@ -0,0 +1,68 @@
+package com.tomersch.mp3playerai.ai;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Dense, song-id indexed copy of the learning state for one SongStore (see AILearningManager.viewFor).
+ *
+ * The scoring loop reads plain arrays instead of hashing the path four times per song.
+ * AILearningManager keeps the view in sync on every record* call (under its lock); readers
+ * never lock: floats are written atomically, bitsets are swapped, windows synchronize internally.
+ */
+public final class LearningView {
+    final SongStore store;
+
+    public final float[] score;          // -1..+1, 0 = unknown
+
+    // Cooldown queries ("played / recommended in the last X minutes"), bounded to the horizon
+    public final RecencyWindow played = new RecencyWindow();
+    public final RecencyWindow recommended = new RecencyWindow();
+
+    // Replaced (not mutated) on change, so a scoring pass can hold a consistent snapshot
+    volatile BitSet everPlayed;
+    volatile BitSet recentSkip;          // skipped within the last RECENT_SKIPS entries
+
+    LearningView(SongStore store) {
+        this.store = store;
+        this.score = new float[store.size];
+        this.everPlayed = new BitSet(store.size);
+        this.recentSkip = new BitSet(store.size);
+    }
+
+    public boolean wasRecentlySkipped(int id) {
+        return recentSkip.get(id);
+    }
+
+    // ===== Updates (AILearningManager only) =====
+
+    void setScore(String path, float value) {
+        int id = store.idOf(path);
+        if (id >= 0) score[id] = value;
+    }
+
+    void markPlayed(String path, long time) {
+        int id = store.idOf(path);
+        if (id < 0) return;
+        played.mark(id, time);
+        if (!everPlayed.get(id)) {
+            BitSet ever = (BitSet) everPlayed.clone();
+            ever.set(id);
+            everPlayed = ever;
+        }
+    }
+
+    void markRecommended(String path, long time) {
+        int id = store.idOf(path);
+        if (id >= 0) recommended.mark(id, time);
+    }
+
+    void setRecentSkips(List<String> skipHistory, int recent) {
+        BitSet bits = new BitSet(store.size);
+        for (int i = Math.max(0, skipHistory.size() - recent); i < skipHistory.size(); i++) {
+            int id = store.idOf(skipHistory.get(i));
+            if (id >= 0) bits.set(id);
+        }
+        recentSkip = bits;
+    }
+}
@@ -0,0 +1,447 @@
+package com.tomersch.mp3playerai.ai;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Single owner of the local LLM: one "llm-worker" thread holds the llama context and runs every
+ * request, so callers (AI tab, AI Continue, future playlist naming) never share it concurrently
+ * or load their own copy. A GGUF model pins 0.7-4 GB of native memory, which a music player must
+ * not hold while it just plays songs.
+ *
+ * - Requests are prioritized: interactive (user waiting) before background, FIFO within a priority
+ * - Query parses without a listener waiting together are decoded as one batch (one llama
+ *   sequence each, LocalLlmInterpreter.parseBatch), up to LocalLlmInterpreter.MAX_PARALLEL
+ * - Loaded on first demand, with the prompt-prefix warm-up decode (LocalLlmInterpreter.initialize)
+ * - Unloaded after idleTimeoutMs without requests, or on memory pressure (onTrimMemory)
+ * - Reloaded transparently by the next request; the active model comes from ModelManager on every load
+ * - Thread counts per model come from ModelManager; the first load of a model runs ThreadCalibration
+ *   once, only after CALIBRATION_QUIET_MS without requests, and gives way to any interactive request
+ *
+ * getStats reports queue-wait percentiles per priority and token throughput.
+ */
+public final class LlmLifecycleManager {
+    private static final String TAG = "LlmLifecycleManager";
+    private static final long DEFAULT_IDLE_TIMEOUT_MS = 2 * 60 * 1000L;
+    private static final int WAIT_SAMPLES = 256;
+    private static final long CALIBRATION_QUIET_MS = 5000;
+
+    public enum Priority { INTERACTIVE, BACKGROUND }
+
+    // Request ranks: memory-pressure / shutdown control first, then the priorities in order
+    private static final int RANK_URGENT = 0;
+    private static final int RANK_INTERACTIVE = 1;
+    private static final int RANK_BACKGROUND = 2;
+
+    private final LocalLlmInterpreter interpreter;
+    private final ModelManager modelManager;
+
+    private final PriorityBlockingQueue<Request> queue = new PriorityBlockingQueue<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final Thread worker;
+
+    // Worker thread only
+    private long lastUsed;
+    private boolean running = true;
+    private int[] loadedThreads;          // {gen, batch} the model runs with
+    private String calibrationPending;    // model still to calibrate once the queue is quiet
+
+    // Stats (written by the worker, read anywhere)
+    private volatile int loads;
+    private volatile int unloads;
+    private volatile String threads = "default";
+    private final WaitStats interactiveWait = new WaitStats();
+    private final WaitStats backgroundWait = new WaitStats();
+    private volatile long busyNs;
+    private volatile long tokens;
+    private volatile long batches;
+    private volatile long batchedQueries;
+
+    private volatile long idleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+    private volatile boolean closed = false;
+
+    public LlmLifecycleManager(Context context, LocalLlmInterpreter interpreter) {
+        this.interpreter = interpreter;
+        this.modelManager = new ModelManager(context.getApplicationContext());
+
+        worker = new Thread(this::loop, "llm-worker");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * True if a model is downloaded and selected, i.e. requests can succeed. Never loads anything.
+     */
+    public boolean hasModel() {
+        return modelManager.getActiveModelPath() != null;
+    }
+
+    public boolean isLoaded() {
+        return interpreter.isReady();
+    }
+
+    /**
+     * Run task with the model loaded (loading it first if needed), on the LLM thread, as an
+     * interactive request. The future fails if there is no model or it cannot be loaded.
+     */
+    public <T> CompletableFuture<T> submit(Function<LocalLlmInterpreter, T> task) {
+        return submit(Priority.INTERACTIVE, task);
+    }
+
+    public <T> CompletableFuture<T> submit(Priority priority, Function<LocalLlmInterpreter, T> task) {
+        Task<T> request = new Task<>(rank(priority), task);
+        enqueue(request);
+        return request.future;
+    }
+
+    /**
+     * LLM parse of query (callers check getCachedProfile first). Requests without a listener
+     * may share a batched decode with other queued parses; with a listener the answer streams.
+     */
+    public CompletableFuture<QueryProfile> parseQuery(String query, Priority priority,
+                                                      LocalLlmInterpreter.ProfileListener listener) {
+        ParseRequest request = new ParseRequest(rank(priority), query, listener);
+        enqueue(request);
+        return request.future;
+    }
+
+    /**
+     * Profile the active model already produced for query, or null. Never loads the model.
+     */
+    public QueryProfile getCachedProfile(String query) {
+        String model = modelManager.getActiveModel();
+        if (model == null) return null;
+        return interpreter.getQueryCache().get(model, LocalLlmInterpreter.QUERY_PROMPT_VERSION, query);
+    }
+
+    public void setIdleTimeoutMs(long ms) {
+        idleTimeoutMs = ms;
+        post(RANK_URGENT, () -> {});   // wake the worker to re-arm its idle wait
+    }
+
+    /**
+     * Forward of ComponentCallbacks2.onTrimMemory: free the model when the system is short on
+     * memory or the UI is gone (playback does not need it; the next request reloads it).
+     */
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            post(RANK_URGENT, () -> unload("trim memory level " + level));
+        }
+    }
+
+    /**
+     * Unload now (no-op if not loaded).
+     */
+    public void release() {
+        post(RANK_URGENT, () -> unload("released"));
+    }
+
+    /**
+     * Forget the active model's thread calibration and run it again (model stays loaded).
+     */
+    public void recalibrate() {
+        String model = modelManager.getActiveModel();
+        if (model == null) return;
+        modelManager.clearThreadConfig(model);
+        post(RANK_URGENT, () -> calibrationPending = model);
+    }
+
+    /**
+     * Stop the worker after the running request; queued requests fail, the model is freed.
+     */
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;   // nothing is queued after the stop request
+        queue.add(new Control(RANK_URGENT, () -> running = false));
+    }
+
+    public String getStats() {
+        long busyMs = busyNs / 1_000_000;
+        return "LLM: " + (isLoaded() ? "loaded (" + interpreter.getMemoryStats() + ")" : "not loaded") + ", " +
+                loads + " loads / " + unloads + " unloads, idle timeout " + (idleTimeoutMs / 1000) + "s, threads " +
+                threads + "\n" +
+                "LLM queue: interactive wait " + interactiveWait + ", background wait " + backgroundWait +
+                (busyMs > 0 ? ", " + (tokens * 1000 / busyMs) + " tokens/s" : "") +
+                (batches > 0 ? ", " + batches + " batches of " +
+                        String.format(Locale.US, "%.1f", (double) batchedQueries / batches) + " avg" : "");
+    }
+
+    // ===== Requests =====
+
+    private abstract class Request implements Comparable<Request> {
+        final int rank;
+        final long seq = sequence.getAndIncrement();
+        final long enqueuedNs = System.nanoTime();
+
+        Request(int rank) {
+            this.rank = rank;
+        }
+
+        abstract void fail(Throwable t);
+
+        @Override
+        public int compareTo(Request o) {
+            if (rank != o.rank) return Integer.compare(rank, o.rank);
+            return Long.compare(seq, o.seq);
+        }
+    }
+
+    private final class Task<T> extends Request {
+        final Function<LocalLlmInterpreter, T> task;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        Task(int rank, Function<LocalLlmInterpreter, T> task) {
+            super(rank);
+            this.task = task;
+        }
+
+        @Override
+        void fail(Throwable t) {
+            future.completeExceptionally(t);
+        }
+    }
+
+    private final class ParseRequest extends Request {
+        final String query;
+        final LocalLlmInterpreter.ProfileListener listener;
+        final CompletableFuture<QueryProfile> future = new CompletableFuture<>();
+
+        ParseRequest(int rank, String query, LocalLlmInterpreter.ProfileListener listener) {
+            super(rank);
+            this.query = query;
+            this.listener = listener;
+        }
+
+        @Override
+        void fail(Throwable t) {
+            future.completeExceptionally(t);
+        }
+    }
+
+    // Internal work (unload, recalibration, wake-ups): not counted in the stats, never fails
+    private final class Control extends Request {
+        final Runnable action;
+
+        Control(int rank, Runnable action) {
+            super(rank);
+            this.action = action;
+        }
+
+        @Override
+        void fail(Throwable t) {}
+    }
+
+    private static int rank(Priority priority) {
+        return priority == Priority.BACKGROUND ? RANK_BACKGROUND : RANK_INTERACTIVE;
+    }
+
+    private synchronized void enqueue(Request r) {
+        if (closed) {
+            r.fail(new IllegalStateException("LLM manager closed"));
+            return;
+        }
+        queue.add(r);
+    }
+
+    private synchronized void post(int rank, Runnable action) {
+        if (!closed) queue.add(new Control(rank, action));
+    }
+
+    // ===== Worker thread =====
+
+    private void loop() {
+        while (running) {
+            Request r;
+            try {
+                if (interpreter.isReady()) {
+                    long quiet = calibrationPending != null ?
+                            Math.min(CALIBRATION_QUIET_MS, idleTimeoutMs) : idleTimeoutMs;
+                    long wait = lastUsed + quiet - System.currentTimeMillis();
+                    r = queue.poll(Math.max(0, wait), TimeUnit.MILLISECONDS);
+                } else {
+                    r = queue.take();
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            if (r == null) {
+                if (calibrationPending != null && System.currentTimeMillis() - lastUsed < idleTimeoutMs) {
+                    calibrateIfNeeded();
+                } else {
+                    unload("idle");
+                }
+            } else if (r instanceof Control) {
+                ((Control) r).action.run();
+            } else {
+                run(r);
+            }
+        }
+
+        unload("closed");
+        synchronized (this) {
+            for (Request r; (r = queue.poll()) != null; ) r.fail(new IllegalStateException("LLM manager closed"));
+        }
+    }
+
+    private void run(Request first) {
+        List<Request> batch = new ArrayList<>();
+        batch.add(first);
+        if (first instanceof ParseRequest && ((ParseRequest) first).listener == null) {
+            collectBatch(batch);
+        }
+
+        long start = System.nanoTime();
+        for (Request r : batch) (r.rank == RANK_BACKGROUND ? backgroundWait : interactiveWait).add(start - r.enqueuedNs);
+
+        long tokensBefore = interpreter.getGeneratedTokens();
+        try {
+            ensureLoaded();
+            if (first instanceof Task) {
+                runTask((Task<?>) first);
+            } else if (batch.size() == 1) {
+                ParseRequest p = (ParseRequest) first;
+                p.future.complete(interpreter.parseUncached(p.query, p.listener));
+            } else {
+                runBatch(batch);
+            }
+        } catch (Throwable t) {
+            for (Request r : batch) r.fail(t);
+        } finally {
+            busyNs += System.nanoTime() - start;
+            tokens += interpreter.getGeneratedTokens() - tokensBefore;
+            lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    private <T> void runTask(Task<T> task) {
+        task.future.complete(task.task.apply(interpreter));
+    }
+
+    /**
+     * Move other queued listener-less parses (any priority) into batch, up to MAX_PARALLEL.
+     */
+    private void collectBatch(List<Request> batch) {
+        List<Request> waiting = new ArrayList<>(queue);
+        waiting.sort(null);
+        Iterator<Request> it = waiting.iterator();
+        while (batch.size() < LocalLlmInterpreter.MAX_PARALLEL && it.hasNext()) {
+            Request r = it.next();
+            if (r instanceof ParseRequest && ((ParseRequest) r).listener == null && queue.remove(r)) batch.add(r);
+        }
+    }
+
+    private void runBatch(List<Request> batch) {
+        List<String> queries = new ArrayList<>(batch.size());
+        for (Request r : batch) queries.add(((ParseRequest) r).query);
+
+        List<QueryProfile> profiles = interpreter.parseBatch(queries);
+        for (int i = 0; i < batch.size(); i++) ((ParseRequest) batch.get(i)).future.complete(profiles.get(i));
+        batches++;
+        batchedQueries += batch.size();
+    }
+
+    private void ensureLoaded() {
+        String model = modelManager.getActiveModel();
+        String path = modelManager.getActiveModelPath();
+        if (path == null) throw new IllegalStateException("No LLM model downloaded");
+
+        interpreter.setModelPath(path);   // closes the old model if the user switched
+        if (interpreter.isReady()) return;
+
+        int[] config = modelManager.getThreadConfig(model);
+        int nThreads = config != null ? config[0] : ThreadCalibration.defaultThreads();
+        int nThreadsBatch = config != null ? config[1] : nThreads;
+
+        long start = System.currentTimeMillis();
+        if (!interpreter.initialize(nThreads, nThreadsBatch)) {
+            throw new IllegalStateException("Failed to load LLM: " + path);
+        }
+        loads++;
+        loadedThreads = new int[]{nThreads, nThreadsBatch};
+        threads = nThreads + " gen / " + nThreadsBatch + " batch" + (config != null ? "" : " (default)");
+        Log.d(TAG, "🧠 LLM loaded in " + (System.currentTimeMillis() - start) + "ms (" + getStats() + ")");
+
+        // Not now: the request that caused this load is waiting, the worker calibrates when idle
+        calibrationPending = config == null ? model : null;
+    }
+
+    /**
+     * Idle worker only. Aborted (and retried at the next quiet period) as soon as an interactive
+     * or control request is queued.
+     */
+    private void calibrateIfNeeded() {
+        String model = calibrationPending;
+        // Switched meanwhile: the next load of that model schedules it again
+        if (!interpreter.isReady() || !model.equals(modelManager.getActiveModel()) ||
+                modelManager.getThreadConfig(model) != null) {
+            calibrationPending = null;
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        int[] best = ThreadCalibration.calibrate(interpreter, () -> {
+            Request next = queue.peek();
+            return next != null && next.rank < RANK_BACKGROUND;
+        });
+        if (best == null) {
+            Log.d(TAG, "⚙️ Thread calibration for " + model + " interrupted after " +
+                    (System.currentTimeMillis() - start) + "ms, retrying when idle");
+            best = loadedThreads;
+        } else {
+            calibrationPending = null;
+            modelManager.setThreadConfig(model, best[0], best[1]);
+            loadedThreads = best;
+            threads = best[0] + " gen / " + best[1] + " batch";
+            Log.d(TAG, "⚙️ Thread calibration for " + model + " took " + (System.currentTimeMillis() - start) +
+                    "ms: " + threads);
+        }
+        interpreter.applyThreads(best[0], best[1]);
+        interpreter.warmQueryPrompt();   // the benchmark cleared the KV cache
+    }
+
+    private void unload(String reason) {
+        if (!interpreter.isReady()) return;
+        interpreter.close();
+        unloads++;
+        Log.d(TAG, "💤 LLM unloaded: " + reason);
+    }
+
+    /**
+     * Queue-wait percentiles over the last WAIT_SAMPLES requests of one priority.
+     */
+    private static final class WaitStats {
+        private final long[] samples = new long[WAIT_SAMPLES];
+        private int count;
+
+        synchronized void add(long ns) {
+            samples[count % WAIT_SAMPLES] = ns;
+            count++;
+        }
+
+        @Override
+        public synchronized String toString() {
+            int n = Math.min(count, WAIT_SAMPLES);
+            if (n == 0) return "n/a";
+            long[] sorted = Arrays.copyOf(samples, n);
+            Arrays.sort(sorted);
+            return "p50 " + ms(sorted, 0.50) + " / p90 " + ms(sorted, 0.90) + " / p99 " + ms(sorted, 0.99) + "ms";
+        }
+
+        private static long ms(long[] sorted, double p) {
+            return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))] / 1_000_000;
+        }
+    }
+}
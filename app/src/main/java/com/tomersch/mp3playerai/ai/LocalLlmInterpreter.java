@@ -3,9 +3,14 @@ package com.tomersch.mp3playerai.ai;
 import android.content.Context;
 import android.util.Log;
 
+import org.json.JSONException;
+
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Local LLM Interpreter using llama.cpp
@@ -24,11 +29,42 @@ import java.io.InputStream;
  */
 public class LocalLlmInterpreter {
     private static final String TAG = "LocalLlmInterpreter";
+
+    // Bump whenever buildQueryParsePrompt changes, so cached answers of the old prompt are not reused
+    static final int QUERY_PROMPT_VERSION = 2;
     
     private Context context;
     private long llamaContextPtr = 0;
     private String modelPath;
     private boolean isInitialized = false;
+    private String memoryStats = "not loaded";   // native getStats, captured at load
+
+    // KV cache element types (initLlama kvType)
+    public static final int KV_F16 = 0;
+    public static final int KV_Q8_0 = 1;
+    public static final int KV_Q4_0 = 2;
+
+    // Applied on the next initialize. q8_0 halves KV memory at no measurable quality cost for
+    // short JSON answers; a quantized V cache needs flash attention
+    private int kvCacheType = KV_Q8_0;
+    private boolean flashAttention = true;
+
+    // Query-parse budget: the context is sized for exactly this (see contextSize).
+    // QUERY_MAX_TOKENS is the longest answer QUERY_GRAMMAR accepts, in bytes: every token is at
+    // least one byte, so generation can never stop before the moods object is complete
+    static final int QUERY_MAX_TOKENS = maxAnswerBytes();
+    static final int QUERY_MAX_BYTES = 200;   // UTF-8: byte-level BPE never needs more tokens than bytes
+
+    // Queries answered by one generateBatch call (each its own llama sequence)
+    static final int MAX_PARALLEL = 3;
+    private final QueryProfileCache queryCache;
+
+    // Query-parse quality counters (DevActivity)
+    private long parseCalls;
+    private long strictParses;      // output was schema-valid JSON
+    private long generatedTokens;
+    private long firstFieldCount, firstFieldMsTotal;   // time to the first usable field
+    private long cancelCount, cancelMsTotal;           // cancel request -> native call returned
     
     // Load native library
     static {
@@ -49,13 +85,38 @@ public class LocalLlmInterpreter {
     public LocalLlmInterpreter(Context context, String modelPath) {
         this.context = context;
         this.modelPath = modelPath;
+        this.queryCache = new QueryProfileCache(context);
     }
     
+    /**
+     * Switch model file. Closes the loaded model if the path changes; takes effect on the next initialize().
+     */
+    public void setModelPath(String path) {
+        if (path == null || path.equals(modelPath)) return;
+        close();
+        modelPath = path;
+    }
+
+    public String getModelPath() {
+        return modelPath;
+    }
+
     /**
      * Initialize the LLM (loads model into memory)
      * This is expensive (3-4GB RAM), so only call when needed
      */
     public boolean initialize() {
+        int threads = ThreadCalibration.defaultThreads();
+        return initialize(threads, threads);
+    }
+
+    /**
+     * initialize with explicit thread counts (see ThreadCalibration)
+     *
+     * @param nThreads Threads for single-token generation
+     * @param nThreadsBatch Threads for prompt evaluation
+     */
+    public boolean initialize(int nThreads, int nThreadsBatch) {
         if (isInitialized) {
             Log.d(TAG, "Already initialized");
             return true;
@@ -71,9 +132,13 @@ public class LocalLlmInterpreter {
         
         // Initialize llama.cpp
         // Parameters:
-        //   nCtx: 2048 (smaller context for faster inference)
-        //   nThreads: 4 (use multiple CPU cores)
-        llamaContextPtr = initLlama(modelPath, 2048, 4);
+        //   nCtx: what the query prompt + answer can take, not a fixed 2048 (KV memory is n_ctx-linear)
+        //   nThreads / nThreadsBatch: per-phone, per-model calibrated counts
+        //   kvCacheType / flashAttention: see setKvCache
+        //   nSeqMax: the cached prefix (seq 0) + MAX_PARALLEL batch slots sharing its cells
+        int nCtx = contextSize(QUERY_PROMPT_PREFIX, QUERY_MAX_BYTES, QUERY_MAX_TOKENS, MAX_PARALLEL);
+        llamaContextPtr = initLlama(modelPath, nCtx, MAX_PARALLEL + 1, nThreads, nThreadsBatch, kvCacheType,
+                flashAttention);
         
         if (llamaContextPtr == 0) {
             Log.e(TAG, "Failed to initialize Llama");
@@ -81,10 +146,94 @@ public class LocalLlmInterpreter {
         }
         
         isInitialized = true;
-        Log.d(TAG, "✅ LLM initialized successfully");
+        memoryStats = getStats(llamaContextPtr);
+        Log.d(TAG, "✅ LLM initialized successfully: " + memoryStats);
+
+        warmQueryPrompt();
         return true;
     }
+
+    /**
+     * KV cache element type (KV_*) and flash attention, used from the next initialize()
+     */
+    public void setKvCache(int type, boolean flashAttention) {
+        this.kvCacheType = type;
+        this.flashAttention = flashAttention;
+    }
+
+    /**
+     * Context tokens for a prompt template + `parallel` (input + answer), rounded up to 128.
+     * The template is counted once: batch sequences share its cells. Conservative without a
+     * tokenizer: at most one token per 2 template bytes (English BPE is ~4) and one per input byte
+     * (CJK / emoji / accented characters can take a token per UTF-8 byte).
+     */
+    static int contextSize(String template, int maxInputBytes, int maxTokens, int parallel) {
+        int templateTokens = template.getBytes(StandardCharsets.UTF_8).length / 2;
+        int tokens = templateTokens + parallel * (maxInputBytes + maxTokens + 16);   // + BOS / closing text
+        return (tokens + 127) / 128 * 128;
+    }
+
+    /**
+     * Context size and KV cache memory of the loaded model (or "not loaded")
+     */
+    public String getMemoryStats() {
+        return memoryStats;
+    }
+
+    /**
+     * Change thread counts of the loaded model (no reload)
+     */
+    void applyThreads(int nThreads, int nThreadsBatch) {
+        if (isInitialized) setThreads(llamaContextPtr, nThreads, nThreadsBatch);
+    }
+
+    /**
+     * Time prompt eval / generation with nThreads ({promptUs, genUs}, null on failure).
+     * Clears the KV cache: call warmQueryPrompt afterwards.
+     */
+    long[] benchmarkThreads(int nThreads, int nPrompt, int nGen) {
+        if (!isInitialized) return null;
+        return benchmarkThreads(llamaContextPtr, nThreads, nPrompt, nGen);
+    }
+
+    /**
+     * Evaluate the constant query-prompt prefix into the KV cache
+     */
+    void warmQueryPrompt() {
+        if (!isInitialized) return;
+
+        // Pay for the fixed instructions now rather than on the first query
+        long start = System.currentTimeMillis();
+        if (warmPrompt(llamaContextPtr, QUERY_PROMPT_PREFIX)) {
+            Log.d(TAG, "🔥 Prompt prefix cached in " + (System.currentTimeMillis() - start) + "ms");
+        } else {
+            Log.w(TAG, "Prompt prefix warm-up failed, first query evaluates the full prompt");
+        }
+    }
     
+    /**
+     * Receives the profile while the LLM is still generating (on the calling thread).
+     */
+    public interface ProfileListener {
+        /**
+         * Called each time a field (genres, or one mood) is complete.
+         *
+         * @param partial Fields so far, moods not generated yet are neutral (a copy)
+         * @return false to stop generation, the partial profile is then returned as is
+         */
+        boolean onPartialProfile(QueryProfile partial);
+    }
+
+    /**
+     * Token pieces of generateStream, called from native code on the generating thread.
+     */
+    public interface TokenListener {
+        /**
+         * @return false to stop generation after this piece
+         */
+        boolean onToken(String piece);
+    }
+
     /**
      * Parse a natural language music query into a QueryProfile
      * 
@@ -92,6 +241,27 @@ public class LocalLlmInterpreter {
      * @return QueryProfile with extracted genres and moods
      */
     public QueryProfile parseQuery(String query) {
+        return parseQuery(query, null);
+    }
+
+    /**
+     * parseQuery, streaming: the answer is parsed while tokens arrive, listener (may be null) sees
+     * each completed field, and generation is cancelled as soon as every field is in.
+     */
+    public QueryProfile parseQuery(String query, ProfileListener listener) {
+        // Repeated / preset queries: no inference at all (works even before the model is loaded)
+        QueryProfile cached = getCachedProfile(query);
+        if (cached != null) {
+            Log.d(TAG, "Cached profile for: " + query + " (" + queryCache.getStats() + ")");
+            return cached;
+        }
+        return parseUncached(query, listener);
+    }
+
+    /**
+     * parseQuery without the cache lookup (caller already missed it); the result is still cached.
+     */
+    QueryProfile parseUncached(String query, ProfileListener listener) {
         if (!isInitialized) {
             Log.e(TAG, "LLM not initialized, returning default profile");
             return new QueryProfile();
@@ -105,45 +275,251 @@ public class LocalLlmInterpreter {
         // Generate response from LLM
         // Parameters:
         //   temperature: 0.3 (low for more deterministic output)
-        //   maxTokens: 256 (enough for JSON response)
-        String response = generateText(llamaContextPtr, prompt, 0.3f, 256);
-        
-        if (response == null || response.isEmpty()) {
+        //   maxTokens: QUERY_MAX_TOKENS (the longest answer the grammar allows, what the context is sized for)
+        //   grammar: output can only be the QueryProfile schema, generation stops when it closes
+        final StreamingProfileParser stream = new StreamingProfileParser();
+        final long start = System.nanoTime();
+        final long[] firstFieldAt = {0};
+        final long[] cancelAt = {0};
+        final boolean[] stoppedByListener = {false};
+
+        String response = generateStream(llamaContextPtr, prompt, QUERY_GRAMMAR, 0.3f, QUERY_MAX_TOKENS, piece -> {
+            int before = stream.fieldCount();
+            stream.feed(piece);
+            if (stream.fieldCount() == before) return true;
+
+            if (firstFieldAt[0] == 0) firstFieldAt[0] = System.nanoTime();
+            if (listener != null && !listener.onPartialProfile(stream.snapshot())) {
+                stoppedByListener[0] = true;
+                cancelAt[0] = System.nanoTime();
+                return false;
+            }
+            if (stream.isComplete()) {
+                // Everything needed is in: don't spend tokens on the closing braces
+                cancelAt[0] = System.nanoTime();
+                return false;
+            }
+            return true;
+        });
+        long end = System.nanoTime();
+        int tokens = getLastTokenCount(llamaContextPtr);
+
+        long firstFieldMs = firstFieldAt[0] == 0 ? -1 : (firstFieldAt[0] - start) / 1_000_000;
+        long cancelMs = cancelAt[0] == 0 ? -1 : (end - cancelAt[0]) / 1_000_000;
+        Log.d(TAG, "⏱️ LLM parse took " + (end - start) / 1_000_000 + "ms, " + tokens + " tokens, first field after " +
+                firstFieldMs + "ms, cancel latency " + cancelMs + "ms");
+
+        if (stoppedByListener[0]) {
+            // Caller no longer wants the full answer: partial result, not cached
+            recordParse(tokens, false, firstFieldMs, cancelMs);
+            return stream.snapshot();
+        }
+
+        // Parse JSON response into QueryProfile (lenient scraping only if the schema was not met)
+        QueryProfile profile;
+        if (stream.isComplete()) {
+            profile = stream.snapshot();
+            recordParse(tokens, true, firstFieldMs, cancelMs);
+        } else if (response == null || response.isEmpty()) {
             Log.e(TAG, "Empty response from LLM");
+            recordParse(tokens, false, firstFieldMs, cancelMs);
             return new QueryProfile();
+        } else {
+            Log.d(TAG, "LLM response: " + response);
+            QueryProfile strict = null;
+            try {
+                strict = QueryProfile.fromSchemaJson(response);
+            } catch (JSONException e) {
+                Log.w(TAG, "LLM output is not schema JSON (" + e.getMessage() + "), scraping it");
+            }
+            profile = strict != null ? strict : QueryProfile.fromLlmJson(response);
+            recordParse(tokens, strict != null, firstFieldMs, cancelMs);
         }
         
-        Log.d(TAG, "LLM response: " + response);
-        
-        // Parse JSON response into QueryProfile
-        QueryProfile profile = QueryProfile.fromLlmJson(response);
-        
         Log.d(TAG, "Parsed profile: " + profile);
-        
+
+        queryCache.put(modelName(), QUERY_PROMPT_VERSION, query, profile);
         return profile;
     }
+
+    /**
+     * LLM parse of several queries in one batched generation (see generateBatch), cache bypassed
+     * on the way in and filled on the way out. At most MAX_PARALLEL queries.
+     */
+    List<QueryProfile> parseBatch(List<String> queries) {
+        List<QueryProfile> profiles = new ArrayList<>(queries.size());
+        if (!isInitialized || queries.size() > MAX_PARALLEL) {
+            Log.e(TAG, "parseBatch: not initialized or too many queries (" + queries.size() + ")");
+            for (int i = 0; i < queries.size(); i++) profiles.add(new QueryProfile());
+            return profiles;
+        }
+
+        String[] prompts = new String[queries.size()];
+        for (int i = 0; i < prompts.length; i++) prompts[i] = buildQueryParsePrompt(queries.get(i));
+
+        long start = System.currentTimeMillis();
+        String[] responses = generateBatch(llamaContextPtr, prompts, QUERY_GRAMMAR, 0.3f, QUERY_MAX_TOKENS);
+        int tokens = getLastTokenCount(llamaContextPtr);
+        Log.d(TAG, "⏱️ LLM batch of " + prompts.length + " took " + (System.currentTimeMillis() - start) + "ms, " +
+                tokens + " tokens");
+
+        for (int i = 0; i < queries.size(); i++) {
+            String response = responses != null ? responses[i] : null;
+            if (response == null || response.isEmpty()) {
+                Log.e(TAG, "Empty response from LLM for: " + queries.get(i));
+                recordParse(tokens / queries.size(), false, -1, -1);
+                profiles.add(new QueryProfile());
+                continue;
+            }
+
+            QueryProfile strict = null;
+            try {
+                strict = QueryProfile.fromSchemaJson(response);
+            } catch (JSONException e) {
+                Log.w(TAG, "LLM output is not schema JSON (" + e.getMessage() + "), scraping it");
+            }
+            QueryProfile profile = strict != null ? strict : QueryProfile.fromLlmJson(response);
+            recordParse(tokens / queries.size(), strict != null, -1, -1);
+
+            queryCache.put(modelName(), QUERY_PROMPT_VERSION, queries.get(i), profile);
+            profiles.add(profile);
+        }
+        return profiles;
+    }
+
+    /**
+     * Profile this model already produced for (a normalized form of) query, or null.
+     */
+    public QueryProfile getCachedProfile(String query) {
+        return queryCache.get(modelName(), QUERY_PROMPT_VERSION, query);
+    }
+
+    public QueryProfileCache getQueryCache() {
+        return queryCache;
+    }
+
+    private synchronized void recordParse(int tokens, boolean strict, long firstFieldMs, long cancelMs) {
+        parseCalls++;
+        generatedTokens += tokens;
+        if (strict) strictParses++;
+        if (firstFieldMs >= 0) {
+            firstFieldCount++;
+            firstFieldMsTotal += firstFieldMs;
+        }
+        if (cancelMs >= 0) {
+            cancelCount++;
+            cancelMsTotal += cancelMs;
+        }
+    }
+
+    /**
+     * Tokens generated by query parses since start (LlmLifecycleManager throughput)
+     */
+    synchronized long getGeneratedTokens() {
+        return generatedTokens;
+    }
+
+    public synchronized String getParseStats() {
+        if (parseCalls == 0) return "LLM parse: no calls";
+        return "LLM parse: " + parseCalls + " calls, " + (generatedTokens / parseCalls) + " tokens avg, " +
+                Math.round(100.0 * strictParses / parseCalls) + "% valid JSON" +
+                (firstFieldCount > 0 ? ", first field " + (firstFieldMsTotal / firstFieldCount) + "ms avg" : "") +
+                (cancelCount > 0 ? ", cancel " + (cancelMsTotal / cancelCount) + "ms avg" : "");
+    }
+
+    private String modelName() {
+        return modelPath == null ? "" : new File(modelPath).getName();
+    }
     
+    /**
+     * Fixed part of the query-parsing prompt. Everything query-dependent comes after it, so its
+     * KV cache is computed once per loaded model (warmPrompt) and reused by every parse.
+     */
+    private static final String QUERY_PROMPT_PREFIX =
+            "You are a music recommendation expert. Parse the music query at the end into JSON format.\n\n" +
+            "Extract:\n" +
+            "1. genres: array of genre strings (e.g., [\"rock\", \"metal\", \"anime\"])\n" +
+            "2. moods: object with mood scores 0-100:\n" +
+            "   - hype: energetic, upbeat, party vibes (0=calm, 100=intense)\n" +
+            "   - aggressive: hard, harsh, powerful (0=gentle, 100=brutal)\n" +
+            "   - melodic: tuneful, harmonic, vocal focus (0=atonal, 100=very melodic)\n" +
+            "   - atmospheric: ambient, spacey, immersive (0=dry, 100=ethereal)\n" +
+            "   - cinematic: epic, orchestral, dramatic (0=simple, 100=grand)\n" +
+            "   - rhythmic: beat-driven, danceable (0=free-form, 100=strict rhythm)\n\n" +
+            "Output ONLY valid JSON, no explanation:\n" +
+            "{\"genres\":[...],\"moods\":{\"hype\":N,\"aggressive\":N,\"melodic\":N,\"atmospheric\":N,\"cinematic\":N,\"rhythmic\":N}}\n\n" +
+            "Query: \"";
+
+    /**
+     * GBNF for the answer: exactly {"genres":[...],"moods":{...}} with up to MAX_GENRES short
+     * lowercase genres and every mood as an integer 0-100, in SongStore.MOOD_NAMES order.
+     * Nothing else can be sampled, so no tokens go to prose, and the output always parses.
+     */
+    private static final int MAX_GENRES = 4;
+    private static final int GENRE_MAX_CHARS = 24;
+    static final String QUERY_GRAMMAR = buildQueryGrammar();
+
+    private static String buildQueryGrammar() {
+        StringBuilder moods = new StringBuilder("moods ::= \"{\"");
+        for (int m = 0; m < SongStore.MOOD_COUNT; m++) {
+            if (m > 0) moods.append(" \",\" ws");
+            moods.append(" \"\\\"").append(SongStore.MOOD_NAMES[m]).append("\\\":\" ws score");
+        }
+        moods.append(" \"}\"\n");
+
+        return "root ::= \"{\" ws \"\\\"genres\\\":\" ws genres \",\" ws \"\\\"moods\\\":\" ws moods \"}\"\n" +
+                "genres ::= \"[\" ( genre ( \",\" ws genre ){0," + (MAX_GENRES - 1) + "} )? \"]\"\n" +
+                "genre ::= \"\\\"\" [a-z] [a-z0-9 &-]{0," + (GENRE_MAX_CHARS - 1) + "} \"\\\"\"\n" +
+                moods +
+                "score ::= [0-9] | [1-9] [0-9] | \"100\"\n" +
+                "ws ::= \" \"?\n";
+    }
+
+    /**
+     * UTF-8 length of the longest answer QUERY_GRAMMAR accepts (every optional space, MAX_GENRES
+     * genres of GENRE_MAX_CHARS, every score "100"). Keep in sync with buildQueryGrammar.
+     */
+    static int maxAnswerBytes() {
+        StringBuilder sb = new StringBuilder("{ \"genres\": [");
+        for (int g = 0; g < MAX_GENRES; g++) {
+            if (g > 0) sb.append(", ");
+            sb.append('"');
+            for (int c = 0; c < GENRE_MAX_CHARS; c++) sb.append('a');
+            sb.append('"');
+        }
+        sb.append("], \"moods\": {");
+        for (int m = 0; m < SongStore.MOOD_COUNT; m++) {
+            if (m > 0) sb.append(", ");
+            sb.append('"').append(SongStore.MOOD_NAMES[m]).append("\": 100");
+        }
+        return sb.append("}}").toString().getBytes(StandardCharsets.UTF_8).length;
+    }
+
     /**
      * Build prompt for parsing music queries
      * This is the key to good LLM performance!
+     * The query goes last: only the few tokens after QUERY_PROMPT_PREFIX are evaluated per call.
+     * Cut to QUERY_MAX_BYTES of UTF-8 so the prompt always fits the context.
      */
     private String buildQueryParsePrompt(String query) {
-        return "You are a music recommendation expert. Parse this music query into JSON format.\n\n" +
-               "Query: \"" + query + "\"\n\n" +
-               "Extract:\n" +
-               "1. genres: array of genre strings (e.g., [\"rock\", \"metal\", \"anime\"])\n" +
-               "2. moods: object with mood scores 0-100:\n" +
-               "   - hype: energetic, upbeat, party vibes (0=calm, 100=intense)\n" +
-               "   - aggressive: hard, harsh, powerful (0=gentle, 100=brutal)\n" +
-               "   - melodic: tuneful, harmonic, vocal focus (0=atonal, 100=very melodic)\n" +
-               "   - atmospheric: ambient, spacey, immersive (0=dry, 100=ethereal)\n" +
-               "   - cinematic: epic, orchestral, dramatic (0=simple, 100=grand)\n" +
-               "   - rhythmic: beat-driven, danceable (0=free-form, 100=strict rhythm)\n\n" +
-               "Output ONLY valid JSON, no explanation:\n" +
-               "{\"genres\":[...],\"moods\":{\"hype\":N,\"aggressive\":N,\"melodic\":N,\"atmospheric\":N,\"cinematic\":N,\"rhythmic\":N}}\n\n" +
-               "JSON:";
+        return QUERY_PROMPT_PREFIX + truncateUtf8(query, QUERY_MAX_BYTES) + "\"\n\nJSON:";
     }
-    
+
+    /**
+     * Longest prefix of s that is at most maxBytes in UTF-8, cut between code points
+     * (never inside a surrogate pair).
+     */
+    static String truncateUtf8(String s, int maxBytes) {
+        int bytes = 0;
+        for (int i = 0; i < s.length(); ) {
+            int cp = s.codePointAt(i);
+            bytes += cp < 0x80 ? 1 : cp < 0x800 ? 2 : cp < 0x10000 ? 3 : 4;
+            if (bytes > maxBytes) return s.substring(0, i);
+            i += Character.charCount(cp);
+        }
+        return s;
+    }
+
     /**
      * Free LLM resources (releases 3-4GB RAM!)
      * Always call this when done to avoid memory issues
@@ -153,6 +529,7 @@ public class LocalLlmInterpreter {
             freeLlama(llamaContextPtr);
             llamaContextPtr = 0;
             isInitialized = false;
+            memoryStats = "not loaded";
             Log.d(TAG, "✅ LLM resources freed");
         }
     }
@@ -172,22 +549,85 @@ public class LocalLlmInterpreter {
      * Initialize llama.cpp model
      * 
      * @param modelPath Path to GGUF model file
-     * @param nCtx Context size (number of tokens)
-     * @param nThreads Number of CPU threads
+     * @param nCtx Context size (number of tokens, shared by all sequences)
+     * @param nSeqMax Sequences: 1 + the most prompts passed to generateBatch
+     * @param nThreads CPU threads for single-token generation
+     * @param nThreadsBatch CPU threads for prompt (batch) evaluation
+     * @param kvType KV cache element type (KV_F16, KV_Q8_0, KV_Q4_0)
+     * @param flashAttn Use flash attention (required to quantize the V cache)
      * @return Context pointer (0 if failed)
      */
-    private native long initLlama(String modelPath, int nCtx, int nThreads);
+    private native long initLlama(String modelPath, int nCtx, int nSeqMax, int nThreads, int nThreadsBatch,
+                                  int kvType, boolean flashAttn);
+
+    /**
+     * n_ctx, KV cache memory and types, model size
+     */
+    private native String getStats(long contextPtr);
+
+    private native void setThreads(long contextPtr, int nThreads, int nThreadsBatch);
+
+    /**
+     * Benchmark: nPrompt-token batch decode + nGen single-token decodes with nThreads
+     *
+     * @return {promptUs, genUs}, or null on failure
+     */
+    private native long[] benchmarkThreads(long contextPtr, int nThreads, int nPrompt, int nGen);
     
     /**
-     * Generate text from prompt
+     * Generate text from prompt (reuses the KV cache of the prefix it shares with the previous prompt)
      * 
      * @param contextPtr Llama context pointer
      * @param prompt Input prompt
+     * @param grammar GBNF constraining the output (root rule "root"), or null for free text
      * @param temperature Sampling temperature (0.0-2.0)
      * @param maxTokens Maximum tokens to generate
      * @return Generated text
      */
-    private native String generateText(long contextPtr, String prompt, float temperature, int maxTokens);
+    private native String generateText(long contextPtr, String prompt, String grammar, float temperature, int maxTokens);
+
+    /**
+     * Generate text from prompt, handing each token piece to listener as it is produced
+     * 
+     * @param contextPtr Llama context pointer
+     * @param prompt Input prompt
+     * @param grammar GBNF constraining the output (root rule "root"), or null for free text
+     * @param temperature Sampling temperature (0.0-2.0)
+     * @param maxTokens Maximum tokens to generate
+     * @param listener Gets every piece, returns false to stop (the piece's token is not decoded)
+     * @return Text generated until the end, the JSON object closed, or listener stopped it
+     */
+    private native String generateStream(long contextPtr, String prompt, String grammar, float temperature,
+                                         int maxTokens, TokenListener listener);
+
+    /**
+     * Generate answers for several prompts in lockstep, one llama sequence each, so every decode
+     * advances all of them. Their common prefix with the cached prompt is not recomputed.
+     *
+     * @param contextPtr Llama context pointer
+     * @param prompts At most nSeqMax - 1 prompts
+     * @param grammar GBNF constraining each output, or null
+     * @param temperature Sampling temperature (0.0-2.0)
+     * @param maxTokens Maximum tokens per answer
+     * @return One answer per prompt, or null on failure
+     */
+    private native String[] generateBatch(long contextPtr, String[] prompts, String grammar, float temperature,
+                                          int maxTokens);
+
+    /**
+     * Tokens sampled by the last generateText / generateStream / generateBatch call (all sequences)
+     */
+    private native int getLastTokenCount(long contextPtr);
+
+    /**
+     * Evaluate a prompt prefix into the KV cache. Later generateText calls whose prompt starts
+     * with it only evaluate the remainder (the native side keeps the longest shared prefix).
+     *
+     * @param contextPtr Llama context pointer
+     * @param prefix Fixed start of upcoming prompts
+     * @return false if evaluation failed
+     */
+    private native boolean warmPrompt(long contextPtr, String prefix);
     
     /**
      * Free llama.cpp context
@@ -31,6 +31,8 @@ public class ModelManager {
     private static final String TAG = "ModelManager";
     private static final String PREFS_NAME = "llm_models";
     private static final String PREF_ACTIVE_MODEL = "active_model";
+    private static final String PREF_THREADS = "threads_";              // + model name
+    private static final String PREF_THREADS_BATCH = "threads_batch_";  // + model name
     
     private Context context;
     private SharedPreferences prefs;
@@ -299,6 +301,7 @@ public class ModelManager {
         boolean deleted = modelFile.delete();
         
         if (deleted) {
+            clearThreadConfig(modelName);
             Log.d(TAG, "✅ Model deleted: " + modelName);
         } else {
             Log.e(TAG, "Failed to delete model: " + modelName);
@@ -307,6 +310,34 @@ public class ModelManager {
         return deleted;
     }
     
+    /**
+     * Calibrated llama.cpp thread counts for a model: {generation, batch}, or null if not calibrated yet
+     */
+    public int[] getThreadConfig(String modelName) {
+        int threads = prefs.getInt(PREF_THREADS + modelName, 0);
+        int threadsBatch = prefs.getInt(PREF_THREADS_BATCH + modelName, 0);
+        if (threads <= 0 || threadsBatch <= 0) return null;
+        return new int[]{threads, threadsBatch};
+    }
+
+    public void setThreadConfig(String modelName, int threads, int threadsBatch) {
+        prefs.edit()
+                .putInt(PREF_THREADS + modelName, threads)
+                .putInt(PREF_THREADS_BATCH + modelName, threadsBatch)
+                .apply();
+        Log.d(TAG, "Threads for " + modelName + ": " + threads + " generation, " + threadsBatch + " batch");
+    }
+
+    /**
+     * Forget the calibration (e.g. to re-run it after an OS update)
+     */
+    public void clearThreadConfig(String modelName) {
+        prefs.edit()
+                .remove(PREF_THREADS + modelName)
+                .remove(PREF_THREADS_BATCH + modelName)
+                .apply();
+    }
+
     /**
      * Get total size of downloaded models
      */
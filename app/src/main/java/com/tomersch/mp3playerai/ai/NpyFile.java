@@ -0,0 +1,130 @@
+package com.tomersch.mp3playerai.ai;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Objects;
+
+/**
+ * Minimal reader for 2-D little-endian float32 (C-order) .npy files.
+ *
+ * The file is memory-mapped and exposed as a read-only FloatBuffer over the data section,
+ * nothing is copied onto the Java heap.
+ * - Uncompressed assets (see noCompress in build.gradle) are mapped straight from the APK
+ * - Otherwise the asset is extracted once to files/npy/ and the copy is mapped
+ */
+public final class NpyFile {
+    private static final String TAG = "NpyFile";
+    private static final String EXTRACT_DIR = "npy";
+
+    public final int rows;
+    public final int cols;
+
+    // Row-major rows x cols, position 0 = element [0][0]
+    private final FloatBuffer data;
+
+    private NpyFile(int rows, int cols, FloatBuffer data) {
+        this.rows = rows;
+        this.cols = cols;
+        this.data = data;
+    }
+
+    /**
+     * Independent view (own position/limit) - safe to use from one thread while others use theirs.
+     */
+    public FloatBuffer view() {
+        return data.duplicate();
+    }
+
+    public static NpyFile fromAsset(Context context, String assetName) throws IOException {
+        // 1) Stored uncompressed: map the asset region of the APK directly
+        try (AssetFileDescriptor afd = context.getAssets().openFd(assetName);
+             FileInputStream in = afd.createInputStream();
+             FileChannel ch = in.getChannel()) {
+            return parse(ch.map(FileChannel.MapMode.READ_ONLY, afd.getStartOffset(), afd.getLength()));
+        } catch (FileNotFoundException compressed) {
+            // openFd fails for compressed assets
+        }
+
+        // 2) Compressed: extract once, then map the copy
+        return map(extractAsset(context, assetName));
+    }
+
+    public static NpyFile map(File file) throws IOException {
+        try (FileInputStream in = new FileInputStream(file);
+             FileChannel ch = in.getChannel()) {
+            return parse(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+        }
+    }
+
+    private static NpyFile parse(ByteBuffer buf) throws IOException {
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+
+        if ((buf.get(0) & 0xFF) != 0x93 || buf.get(1) != 'N' || buf.get(2) != 'U') {
+            throw new IOException("Not an NPY file");
+        }
+        int major = buf.get(6) & 0xFF;
+
+        int headerLen;
+        int headerStart;
+        if (major == 1) {
+            headerLen = buf.getShort(8) & 0xFFFF;
+            headerStart = 10;
+        } else {
+            headerLen = buf.getInt(8);
+            headerStart = 12;
+        }
+
+        byte[] header = new byte[headerLen];
+        buf.position(headerStart);
+        buf.get(header);
+        String h = new String(header, "ISO-8859-1");
+
+        if (!h.contains("'<f4'")) throw new IOException("Unsupported dtype: " + h);
+        if (h.contains("'fortran_order': True")) throw new IOException("Fortran order not supported");
+
+        int s = h.indexOf('(', h.indexOf("'shape'"));
+        int e = h.indexOf(')', s);
+        String[] dims = h.substring(s + 1, e).split(",");
+        int rows = Integer.parseInt(dims[0].trim());
+        int cols = Integer.parseInt(dims[1].trim());
+
+        buf.position(headerStart + headerLen);
+        FloatBuffer data = buf.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        if (data.remaining() < rows * cols) throw new IOException("Truncated NPY data");
+        data.limit(rows * cols);
+
+        return new NpyFile(rows, cols, data.asReadOnlyBuffer());
+    }
+
+    private static File extractAsset(Context context, String assetName) throws IOException {
+        File dir = new File(context.getFilesDir(), EXTRACT_DIR);
+        File out = new File(dir, assetName);
+        if (out.exists() && out.length() > 0) return out;
+
+        Objects.requireNonNull(out.getParentFile()).mkdirs();
+        File tmp = new File(dir, assetName + ".tmp");
+        try (InputStream in = context.getAssets().open(assetName);
+             FileOutputStream os = new FileOutputStream(tmp)) {
+            byte[] buffer = new byte[64 * 1024];
+            int length;
+            while ((length = in.read(buffer)) > 0) os.write(buffer, 0, length);
+            os.getFD().sync();
+        }
+        if (!tmp.renameTo(out)) throw new IOException("rename failed: " + tmp);
+
+        Log.d(TAG, "Extracted " + assetName + " (" + out.length() / 1024 + " KB)");
+        return out;
+    }
+}
@@ -0,0 +1,47 @@
+package com.tomersch.mp3playerai.ai;
+
+import android.content.Context;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+
+/**
+ * PCA projection for song embeddings, using the component matrices shipped in assets:
+ * - audio_pca_components.npy  (128 x 1024)
+ * - meta_pca_components.npy   (32 x 384)
+ *
+ * out[r] = sum_c components[r][c] * in[c]
+ * Components stay memory-mapped (NpyFile), the math is in ProjectionKernel.
+ */
+public final class PcaProjector {
+    public static final String AUDIO_COMPONENTS_ASSET = "audio_pca_components.npy";
+    public static final String META_COMPONENTS_ASSET = "meta_pca_components.npy";
+
+    public final int outDim;
+    public final int inDim;
+    private final FloatBuffer components; // outDim x inDim, row-major (mapped)
+
+    private PcaProjector(NpyFile npy) {
+        this.outDim = npy.rows;
+        this.inDim = npy.cols;
+        this.components = npy.view();
+    }
+
+    public static PcaProjector fromAsset(Context context, String assetName) throws IOException {
+        return new PcaProjector(NpyFile.fromAsset(context, assetName));
+    }
+
+    /**
+     * Project one vector (length inDim) into out (length outDim).
+     */
+    public void project(float[] in, float[] out) {
+        ProjectionKernel.project(components, outDim, inDim, in, out);
+    }
+
+    /**
+     * Project count vectors at once: in = count x inDim, out = count x outDim (row-major).
+     */
+    public void projectBatch(float[] in, int count, float[] out) {
+        ProjectionKernel.projectBatch(components, outDim, inDim, in, count, out);
+    }
+}
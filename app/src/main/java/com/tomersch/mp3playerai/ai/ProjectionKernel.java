@@ -0,0 +1,90 @@
+package com.tomersch.mp3playerai.ai;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Matrix-vector kernel for PCA projection: y = M * x, M is rows x cols (row-major).
+ *
+ * - Cache blocking: M is walked in ROW_BLOCK x COL_BLOCK tiles. A tile is copied once from
+ *   the (memory-mapped) matrix into a small L1-sized array and reused for every vector of the batch.
+ * - Register blocking: 4 matrix rows per pass, so each x element is loaded once per 4 FMAs.
+ *   Leftover rows use a 4-way unrolled dot product.
+ *
+ * Batch layout: x = batch x cols, y = batch x rows, both row-major.
+ */
+public final class ProjectionKernel {
+    static final int ROW_BLOCK = 16;
+    static final int COL_BLOCK = 256;  // 16 x 256 floats = 16 KB tile
+
+    private ProjectionKernel() {}
+
+    public static void project(FloatBuffer m, int rows, int cols, float[] x, float[] y) {
+        projectBatch(m, rows, cols, x, 1, y);
+    }
+
+    public static void projectBatch(FloatBuffer m, int rows, int cols, float[] x, int batch, float[] y) {
+        FloatBuffer mat = m.duplicate(); // own position, callers may share the matrix
+        float[] tile = new float[ROW_BLOCK * COL_BLOCK];
+
+        Arrays.fill(y, 0, batch * rows, 0f);
+
+        for (int r0 = 0; r0 < rows; r0 += ROW_BLOCK) {
+            int rn = Math.min(ROW_BLOCK, rows - r0);
+
+            for (int c0 = 0; c0 < cols; c0 += COL_BLOCK) {
+                int cn = Math.min(COL_BLOCK, cols - c0);
+
+                // Load tile rn x cn (stride cn)
+                for (int r = 0; r < rn; r++) {
+                    mat.position((r0 + r) * cols + c0);
+                    mat.get(tile, r * cn, cn);
+                }
+
+                for (int b = 0; b < batch; b++) {
+                    int xo = b * cols + c0;
+                    int yo = b * rows + r0;
+                    int r = 0;
+                    for (; r + 3 < rn; r += 4) {
+                        dot4Rows(tile, r * cn, cn, x, xo, y, yo + r);
+                    }
+                    for (; r < rn; r++) {
+                        y[yo + r] += dot(tile, r * cn, x, xo, cn);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Four tile rows against one x slice: each x element is loaded once for 4 multiply-adds.
+     */
+    private static void dot4Rows(float[] t, int to, int n, float[] x, int xo, float[] y, int yo) {
+        int t1 = to + n, t2 = t1 + n, t3 = t2 + n;
+        float s0 = 0f, s1 = 0f, s2 = 0f, s3 = 0f;
+        for (int i = 0; i < n; i++) {
+            float xv = x[xo + i];
+            s0 += t[to + i] * xv;
+            s1 += t[t1 + i] * xv;
+            s2 += t[t2 + i] * xv;
+            s3 += t[t3 + i] * xv;
+        }
+        y[yo] += s0;
+        y[yo + 1] += s1;
+        y[yo + 2] += s2;
+        y[yo + 3] += s3;
+    }
+
+    private static float dot(float[] a, int ao, float[] b, int bo, int n) {
+        float s0 = 0f, s1 = 0f, s2 = 0f, s3 = 0f;
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            s0 += a[ao + i] * b[bo + i];
+            s1 += a[ao + i + 1] * b[bo + i + 1];
+            s2 += a[ao + i + 2] * b[bo + i + 2];
+            s3 += a[ao + i + 3] * b[bo + i + 3];
+        }
+        for (; i < n; i++) s0 += a[ao + i] * b[bo + i];
+        return (s0 + s1) + (s2 + s3);
+    }
+}
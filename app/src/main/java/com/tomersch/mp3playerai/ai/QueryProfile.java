@@ -1,7 +1,12 @@
 package com.tomersch.mp3playerai.ai;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -129,6 +134,83 @@ public class QueryProfile {
         return profile;
     }
     
+    /**
+     * Strict parse of grammar-constrained LLM output: {"genres":[...],"moods":{name:0-100,...}}.
+     * Throws if the text is not that schema (caller falls back to fromLlmJson).
+     */
+    public static QueryProfile fromSchemaJson(String json) throws JSONException {
+        int start = json.indexOf('{');
+        if (start < 0) throw new JSONException("no JSON object");
+        JSONObject o = new JSONObject(json.substring(start));
+
+        QueryProfile profile = new QueryProfile();
+        JSONArray genres = o.getJSONArray("genres");
+        for (int i = 0; i < genres.length(); i++) {
+            String genre = genres.getString(i).trim().toLowerCase();
+            if (genre.isEmpty() || profile.genres.contains(genre)) continue;
+            profile.genres.add(genre);
+            profile.keywords.add(genre);
+        }
+
+        JSONObject moods = o.getJSONObject("moods");
+        for (String mood : SongStore.MOOD_NAMES) {
+            profile.moods.put(mood, Math.max(0, Math.min(100, moods.getInt(mood))));
+        }
+        return profile;
+    }
+
+    /**
+     * Independent copy (callers adjust profiles, e.g. slider overrides; cached ones must not change)
+     */
+    public QueryProfile copy() {
+        QueryProfile p = new QueryProfile();
+        p.keywords = new ArrayList<>(keywords);
+        p.genres = new ArrayList<>(genres);
+        p.moods = new HashMap<>(moods);
+        p.avoidRecentMinutes = avoidRecentMinutes;
+        p.topPercent = topPercent;
+        p.temperature = temperature;
+        return p;
+    }
+
+    /**
+     * Serialize for QueryProfileCache
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject o = new JSONObject();
+        o.put("keywords", new JSONArray(keywords));
+        o.put("genres", new JSONArray(genres));
+        o.put("moods", new JSONObject(moods));
+        o.put("avoidRecentMinutes", avoidRecentMinutes);
+        o.put("topPercent", (double) topPercent);
+        o.put("temperature", (double) temperature);
+        return o;
+    }
+
+    public static QueryProfile fromJson(JSONObject o) throws JSONException {
+        QueryProfile p = new QueryProfile();
+        p.keywords = toList(o.getJSONArray("keywords"));
+        p.genres = toList(o.getJSONArray("genres"));
+
+        JSONObject moods = o.getJSONObject("moods");
+        Iterator<String> it = moods.keys();
+        while (it.hasNext()) {
+            String k = it.next();
+            p.moods.put(k, moods.getInt(k));
+        }
+
+        p.avoidRecentMinutes = o.optInt("avoidRecentMinutes", p.avoidRecentMinutes);
+        p.topPercent = (float) o.optDouble("topPercent", p.topPercent);
+        p.temperature = (float) o.optDouble("temperature", p.temperature);
+        return p;
+    }
+
+    private static List<String> toList(JSONArray arr) throws JSONException {
+        List<String> out = new ArrayList<>(arr.length());
+        for (int i = 0; i < arr.length(); i++) out.add(arr.getString(i));
+        return out;
+    }
+
     @Override
     public String toString() {
         return "QueryProfile{" +
@@ -0,0 +1,148 @@
+package com.tomersch.mp3playerai.ai;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * LRU cache of LLM-parsed QueryProfiles, in memory and persisted to files/ai_query_cache.json.
+ *
+ * Key = model name + prompt version + normalized query (lowercase word runs, single spaces), so
+ * "Chill  music!" and "chill music" share an entry, and switching model or prompt never serves
+ * stale answers. Profiles are copied in and out: callers may modify what they get.
+ */
+public final class QueryProfileCache {
+    private static final String TAG = "QueryProfileCache";
+    private static final String FILE_NAME = "ai_query_cache.json";
+    private static final int MAX_ENTRIES = 256;
+
+    private final File file;
+    private final Map<String, QueryProfile> entries = new LinkedHashMap<String, QueryProfile>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, QueryProfile> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private boolean loaded = false;
+    private long hits;
+    private long misses;
+
+    public QueryProfileCache(Context context) {
+        this.file = new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * Cached profile (a copy) or null.
+     */
+    public synchronized QueryProfile get(String modelName, int promptVersion, String query) {
+        ensureLoaded();
+        QueryProfile p = entries.get(key(modelName, promptVersion, query));
+        if (p == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return p.copy();
+    }
+
+    public synchronized void put(String modelName, int promptVersion, String query, QueryProfile profile) {
+        ensureLoaded();
+        entries.put(key(modelName, promptVersion, query), profile.copy());
+        save();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        loaded = true;
+        hits = 0;
+        misses = 0;
+        if (file.exists() && !file.delete()) Log.w(TAG, "Failed to delete " + file.getPath());
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized String getStats() {
+        long total = hits + misses;
+        return "Query cache: " + entries.size() + " entries, " + hits + " hits / " + misses + " misses" +
+                (total > 0 ? " (" + Math.round(100.0 * hits / total) + "% hit)" : "");
+    }
+
+    static String key(String modelName, int promptVersion, String query) {
+        List<String> words = KeywordIndex.tokenize(query);
+        StringBuilder sb = new StringBuilder();
+        sb.append(modelName).append('|').append(promptVersion).append('|');
+        for (int i = 0; i < words.size(); i++) {
+            if (i > 0) sb.append(' ');
+            sb.append(words.get(i));
+        }
+        return sb.toString();
+    }
+
+    // ===== PERSISTENCE =====
+
+    private void ensureLoaded() {
+        if (loaded) return;
+        loaded = true;
+        if (!file.exists()) return;
+
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] data = new byte[(int) file.length()];
+            int off = 0;
+            while (off < data.length) {
+                int n = in.read(data, off, data.length - off);
+                if (n < 0) break;
+                off += n;
+            }
+
+            // Stored least recently used first, so re-inserting keeps the LRU order
+            JSONArray arr = new JSONArray(new String(data, 0, off, StandardCharsets.UTF_8));
+            for (int i = 0; i < arr.length(); i++) {
+                JSONObject e = arr.getJSONObject(i);
+                entries.put(e.getString("key"), QueryProfile.fromJson(e.getJSONObject("profile")));
+            }
+            Log.d(TAG, "Loaded " + entries.size() + " cached query profiles");
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to load query cache, starting empty", e);
+            entries.clear();
+        }
+    }
+
+    private void save() {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            JSONArray arr = new JSONArray();
+            for (Map.Entry<String, QueryProfile> e : entries.entrySet()) {
+                JSONObject o = new JSONObject();
+                o.put("key", e.getKey());
+                o.put("profile", e.getValue().toJson());
+                arr.put(o);
+            }
+
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                out.write(arr.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            if (!tmp.renameTo(file)) throw new IOException("rename failed: " + tmp);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to persist query cache", e);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.tomersch.mp3playerai.ai;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * "Which songs had an event in the last X minutes" over song ids, for X up to HORIZON_MINUTES.
+ *
+ * Ring of one-minute buckets, each holding the ids marked during that minute. A bucket is
+ * recycled when its minute comes around again, so anything older than the horizon expires
+ * on its own and memory is bounded by the events inside the window, not by history.
+ *
+ * Queries build one BitSet per scoring pass (window(minutes, now)); per-song checks are then O(1).
+ * Resolution is one minute: the current, partially elapsed minute always counts as inside.
+ */
+public final class RecencyWindow {
+    public static final int HORIZON_MINUTES = 6 * 60;
+    public static final long HORIZON_MS = HORIZON_MINUTES * 60_000L;
+
+    private static final long MINUTE_MS = 60_000L;
+
+    private final long[] bucketMinute = new long[HORIZON_MINUTES];
+    private final int[][] bucketIds = new int[HORIZON_MINUTES][];
+    private final int[] bucketCount = new int[HORIZON_MINUTES];
+
+    public RecencyWindow() {
+        Arrays.fill(bucketMinute, Long.MIN_VALUE);
+    }
+
+    /**
+     * Record an event for id at time (epoch ms). An event older than what its slot already
+     * holds is past the horizon and ignored.
+     */
+    public synchronized void mark(int id, long time) {
+        long minute = time / MINUTE_MS;
+        int b = (int) Math.floorMod(minute, (long) HORIZON_MINUTES);
+        if (bucketMinute[b] > minute) return;
+        if (bucketMinute[b] != minute) {
+            // Slot still holds an expired minute: recycle it
+            bucketMinute[b] = minute;
+            bucketCount[b] = 0;
+        }
+
+        int[] ids = bucketIds[b];
+        int n = bucketCount[b];
+        if (ids == null) ids = bucketIds[b] = new int[8];
+        else if (n == ids.length) ids = bucketIds[b] = Arrays.copyOf(ids, n * 2);
+        ids[n] = id;
+        bucketCount[b] = n + 1;
+    }
+
+    /**
+     * Ids with an event in the last `minutes` minutes (clamped to the horizon).
+     */
+    public synchronized BitSet window(int minutes, long now) {
+        int span = Math.max(1, Math.min(HORIZON_MINUTES, minutes));
+        long current = now / MINUTE_MS;
+
+        BitSet out = new BitSet();
+        for (long m = current - span + 1; m <= current; m++) {
+            int b = (int) Math.floorMod(m, (long) HORIZON_MINUTES);
+            if (bucketMinute[b] != m) continue;
+            int[] ids = bucketIds[b];
+            for (int i = 0; i < bucketCount[b]; i++) out.set(ids[i]);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,217 @@
+package com.tomersch.mp3playerai.ai;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Deterministic text -> QueryProfile parser, the fast path in front of the LLM.
+ *
+ * - Mood words ("chill", "epic", "workout") set mood targets; several hits on one mood are averaged
+ * - "not"/"no"/"without" inverts the next mood word, "very"/"super" pushes it further from neutral
+ * - Known genres become genres + keywords, anything else left over becomes a keyword
+ * - "surprise"/"variety" widen the pool, "best"/"favorite" narrow it
+ *
+ * Runs in microseconds. The result says how much of the query was understood, so the caller
+ * can decide whether an LLM pass is worth it (see Result.isAmbiguous).
+ */
+public final class RuleBasedQueryParser {
+
+    public static final class Result {
+        public final QueryProfile profile;
+        public final int recognized;  // words mapped to a mood, genre or modifier
+        public final int unknown;     // words passed through as plain keywords
+
+        Result(QueryProfile profile, int recognized, int unknown) {
+            this.profile = profile;
+            this.recognized = recognized;
+            this.unknown = unknown;
+        }
+
+        /**
+         * Nothing was recognized, or the query is mostly free text the rules cannot interpret.
+         */
+        public boolean isAmbiguous() {
+            return recognized == 0 || unknown > recognized;
+        }
+
+        /**
+         * No words at all (empty or blank query): nothing for an LLM to interpret either.
+         */
+        public boolean isEmpty() {
+            return recognized == 0 && unknown == 0;
+        }
+    }
+
+    private static final float INTENSIFY = 1.3f;
+
+    // word -> {mood index, target, mood index, target, ...} in SongStore.MOOD_* order
+    private static final Map<String, int[]> MOOD_WORDS = new HashMap<>();
+    private static final Map<String, String> GENRE_WORDS = new HashMap<>();
+    private static final Set<String> STOP_WORDS = new HashSet<>();
+    private static final Set<String> NEGATIONS = new HashSet<>();
+    private static final Set<String> INTENSIFIERS = new HashSet<>();
+    private static final Set<String> WIDE_POOL = new HashSet<>();
+    private static final Set<String> NARROW_POOL = new HashSet<>();
+
+    static {
+        final int H = SongStore.MOOD_HYPE, AG = SongStore.MOOD_AGGRESSIVE, ME = SongStore.MOOD_MELODIC;
+        final int AT = SongStore.MOOD_ATMOSPHERIC, CI = SongStore.MOOD_CINEMATIC, R = SongStore.MOOD_RHYTHMIC;
+
+        moods(new int[]{H, 85, R, 75}, "energetic", "energy", "upbeat", "hype", "pumped", "lively");
+        moods(new int[]{H, 90, AG, 70, R, 85}, "workout", "gym", "training", "running", "cardio");
+        moods(new int[]{H, 90, R, 90, ME, 70}, "party", "club", "dance", "dancing");
+        moods(new int[]{H, 25, AG, 15, AT, 70}, "chill", "chilled", "relax", "relaxing", "calm", "peaceful",
+                "mellow", "soothing", "lazy");
+        moods(new int[]{H, 10, AG, 5, AT, 85}, "sleep", "sleepy", "bedtime");
+        moods(new int[]{H, 35, AG, 15, AT, 80, R, 30}, "focus", "study", "studying", "concentration", "work", "coding");
+        moods(new int[]{AG, 85, H, 75}, "aggressive", "heavy", "intense", "hard", "brutal", "angry", "rage", "powerful");
+        moods(new int[]{AG, 15}, "soft", "gentle", "light");
+        moods(new int[]{ME, 85}, "melodic", "catchy", "vocal", "singalong", "harmonic");
+        moods(new int[]{ME, 80, H, 35}, "romantic", "love");
+        moods(new int[]{AT, 85}, "ambient", "atmospheric", "dreamy", "ethereal", "spacey", "space", "immersive");
+        moods(new int[]{CI, 85, AT, 65}, "epic", "cinematic", "orchestral", "dramatic", "grand", "soundtrack");
+        moods(new int[]{R, 85}, "rhythmic", "groovy", "groove", "beat", "beats", "bouncy");
+        moods(new int[]{AT, 70, ME, 40, H, 40}, "dark", "moody", "gloomy");
+        moods(new int[]{H, 20, ME, 70}, "sad", "melancholic", "melancholy", "emotional");
+        moods(new int[]{H, 70, ME, 75}, "happy", "cheerful", "bright", "sunny", "fun");
+        moods(new int[]{H, 80, R, 75}, "fast");
+        moods(new int[]{H, 20, R, 35}, "slow");
+
+        genres("rock", "rock");
+        genres("metal", "metal");
+        genres("pop", "pop");
+        genres("jazz", "jazz");
+        genres("blues", "blues");
+        genres("soul", "soul");
+        genres("funk", "funk");
+        genres("disco", "disco");
+        genres("punk", "punk");
+        genres("indie", "indie");
+        genres("folk", "folk");
+        genres("country", "country");
+        genres("reggae", "reggae");
+        genres("latin", "latin");
+        genres("classical", "classical");
+        genres("hip hop", "hiphop", "rap", "trap");
+        genres("rnb", "rnb");
+        genres("electronic", "electronic", "edm", "electro");
+        genres("techno", "techno");
+        genres("house", "house");
+        genres("trance", "trance");
+        genres("dubstep", "dubstep");
+        genres("lofi", "lofi");
+        genres("anime", "anime", "openings", "opening");
+        genres("jpop", "jpop");
+        genres("jrock", "jrock");
+        genres("kpop", "kpop");
+        genres("soundtrack", "ost", "score");
+
+        words(STOP_WORDS, "music", "songs", "song", "tracks", "track", "playlist", "some", "something", "the",
+                "and", "for", "with", "me", "my", "play", "want", "give", "to", "of", "like", "that", "is",
+                "in", "on", "an", "it", "im", "by", "mood", "vibes", "vibe", "stuff", "please", "while", "time",
+                "too", "bit", "little", "kinda", "quite", "high");
+        words(NEGATIONS, "not", "no", "without", "less", "non");
+        words(INTENSIFIERS, "very", "super", "really", "extremely", "ultra", "so", "max");
+        words(WIDE_POOL, "surprise", "random", "variety", "mix", "discover", "different", "new");
+        words(NARROW_POOL, "best", "top", "favorite", "favorites", "favourite", "favourites", "classics");
+    }
+
+    private RuleBasedQueryParser() {}
+
+    public static Result parse(String query) {
+        QueryProfile profile = new QueryProfile();
+        List<String> tokens = KeywordIndex.tokenize(query);
+
+        int[] moodSum = new int[SongStore.MOOD_COUNT];
+        int[] moodHits = new int[SongStore.MOOD_COUNT];
+        int recognized = 0;
+        int unknown = 0;
+
+        boolean negate = false;
+        boolean intensify = false;
+        for (int i = 0; i < tokens.size(); i++) {
+            String word = tokens.get(i);
+
+            // "hip hop" / "lo fi" written as two words
+            if (i + 1 < tokens.size()) {
+                String joined = word + tokens.get(i + 1);
+                if (GENRE_WORDS.containsKey(joined)) {
+                    word = joined;
+                    i++;
+                }
+            }
+
+            if (STOP_WORDS.contains(word)) continue;
+            if (NEGATIONS.contains(word)) {
+                negate = true;
+                recognized++;
+                continue;
+            }
+            if (INTENSIFIERS.contains(word)) {
+                intensify = true;
+                recognized++;
+                continue;
+            }
+
+            boolean known = false;
+            int[] moods = MOOD_WORDS.get(word);
+            if (moods != null) {
+                for (int j = 0; j < moods.length; j += 2) {
+                    float target = moods[j + 1];
+                    if (intensify) target = 50f + (target - 50f) * INTENSIFY;
+                    if (negate) target = 100f - target;
+                    moodSum[moods[j]] += Math.round(Math.max(0f, Math.min(100f, target)));
+                    moodHits[moods[j]]++;
+                }
+                known = true;
+            }
+
+            String genre = GENRE_WORDS.get(word);
+            if (genre != null && !negate) {
+                if (!profile.genres.contains(genre)) profile.genres.add(genre);
+                if (!profile.keywords.contains(genre)) profile.keywords.add(genre);
+                known = true;
+            }
+
+            if (WIDE_POOL.contains(word)) {
+                profile.topPercent = 0.10f;
+                profile.temperature = 1.4f;
+                known = true;
+            } else if (NARROW_POOL.contains(word)) {
+                profile.topPercent = 0.03f;
+                profile.temperature = 0.6f;
+                known = true;
+            }
+
+            if (known) {
+                recognized++;
+            } else if (!negate && word.length() >= 3) {
+                // Artist names, titles, tags: left for keyword matching
+                if (!profile.keywords.contains(word)) profile.keywords.add(word);
+                unknown++;
+            }
+            negate = false;
+            intensify = false;
+        }
+
+        for (int m = 0; m < SongStore.MOOD_COUNT; m++) {
+            if (moodHits[m] > 0) profile.moods.put(SongStore.MOOD_NAMES[m], moodSum[m] / moodHits[m]);
+        }
+        return new Result(profile, recognized, unknown);
+    }
+
+    private static void moods(int[] targets, String... words) {
+        for (String w : words) MOOD_WORDS.put(w, targets);
+    }
+
+    private static void genres(String genre, String... words) {
+        for (String w : words) GENRE_WORDS.put(w, genre);
+    }
+
+    private static void words(Set<String> set, String... words) {
+        for (String w : words) set.add(w);
+    }
+}
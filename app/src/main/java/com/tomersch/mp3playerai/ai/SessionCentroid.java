@@ -0,0 +1,136 @@
+package com.tomersch.mp3playerai.ai;
+
+import java.util.Arrays;
+
+/**
+ * Running "what this session sounds like" for AI Continue: weighted centroid of the moods and
+ * embeddings of the songs listened to, updated in O(1) per song (the session is never rescanned).
+ *
+ * - Weight per song comes from AIRecommendationEngine.recordSessionListen (listen ratio, negative on skip)
+ * - Recent songs count more: each event's weight grows by 1/DECAY, sums are rescaled before they overflow
+ * - Embeddings need the ANN index; events recorded before it is loaded wait in a small pending buffer
+ *
+ * One instance per playback session, owned by the caller. Thread-safe: updates come from the
+ * player, reads from the thread computing the next batch.
+ */
+public final class SessionCentroid {
+    private static final float DECAY = 0.85f;     // previous song's weight relative to the next one
+    private static final float MAX_GAIN = 1e6f;
+    private static final int MAX_PENDING = 64;
+
+    private SongStore store;  // ids are only valid for this snapshot
+    private int events;
+    private float gain = 1f;
+
+    // Moods as deviation from neutral (50): target = 50 + moodSum / moodNorm
+    private final float[] moodSum = new float[SongStore.MOOD_COUNT];
+    private float moodNorm;
+
+    private final float[] embeddingSum = new float[EmbeddingIndex.DIM];
+    private boolean hasEmbedding;
+
+    // Weighted events not folded into embeddingSum yet (index still loading), oldest first
+    private final int[] pendingIds = new int[MAX_PENDING];
+    private final float[] pendingWeights = new float[MAX_PENDING];
+    private int pending;
+
+    public synchronized void reset() {
+        store = null;
+        events = 0;
+        gain = 1f;
+        Arrays.fill(moodSum, 0f);
+        moodNorm = 0f;
+        Arrays.fill(embeddingSum, 0f);
+        hasEmbedding = false;
+        pending = 0;
+    }
+
+    /**
+     * Number of songs folded in since the last reset.
+     */
+    public synchronized int size() {
+        return events;
+    }
+
+    /**
+     * Fold in one song. index may be null while the ANN index is not loaded.
+     */
+    synchronized void add(SongStore s, EmbeddingIndex index, int id, float weight) {
+        if (store != s) {
+            // Library was reloaded: old ids mean nothing in the new snapshot
+            reset();
+            store = s;
+        }
+        if (weight == 0f) return;
+
+        float w = weight * gain;
+        for (int m = 0; m < SongStore.MOOD_COUNT; m++) moodSum[m] += w * (s.moods[m][id] - 50);
+        moodNorm += Math.abs(w);
+
+        if (index != null) {
+            drainPending(index);
+            hasEmbedding |= index.addTo(id, w, embeddingSum);
+        } else {
+            addPending(id, w);
+        }
+
+        events++;
+        gain /= DECAY;
+        if (gain > MAX_GAIN) rescale(1f / gain);
+    }
+
+    /**
+     * Mood targets (0-100, SongStore.MOOD_NAMES order), or null if nothing was listened to in s.
+     */
+    synchronized int[] moodTargets(SongStore s) {
+        if (store != s || moodNorm == 0f) return null;
+        int[] out = new int[SongStore.MOOD_COUNT];
+        for (int m = 0; m < SongStore.MOOD_COUNT; m++) {
+            out[m] = Math.max(0, Math.min(100, Math.round(50f + moodSum[m] / moodNorm)));
+        }
+        return out;
+    }
+
+    /**
+     * Embedding centroid in index space (not normalized), or null if no listened song has one.
+     */
+    synchronized float[] embedding(SongStore s, EmbeddingIndex index) {
+        if (store != s) return null;
+        drainPending(index);
+        return hasEmbedding ? embeddingSum.clone() : null;
+    }
+
+    private void addPending(int id, float w) {
+        if (pending == MAX_PENDING) {
+            // Oldest events weigh least: drop them first
+            System.arraycopy(pendingIds, 1, pendingIds, 0, MAX_PENDING - 1);
+            System.arraycopy(pendingWeights, 1, pendingWeights, 0, MAX_PENDING - 1);
+            pending--;
+        }
+        pendingIds[pending] = id;
+        pendingWeights[pending] = w;
+        pending++;
+    }
+
+    private void drainPending(EmbeddingIndex index) {
+        for (int i = 0; i < pending; i++) {
+            hasEmbedding |= index.addTo(pendingIds[i], pendingWeights[i], embeddingSum);
+        }
+        pending = 0;
+    }
+
+    private void rescale(float f) {
+        for (int m = 0; m < SongStore.MOOD_COUNT; m++) moodSum[m] *= f;
+        moodNorm *= f;
+        for (int i = 0; i < embeddingSum.length; i++) embeddingSum[i] *= f;
+        for (int i = 0; i < pending; i++) pendingWeights[i] *= f;
+        gain *= f;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SessionCentroid{songs=" + events +
+                ", moods=" + Arrays.toString(moodTargets(store)) +
+                ", embedding=" + (hasEmbedding || pending > 0) + '}';
+    }
+}
@@ -0,0 +1,271 @@
+package com.tomersch.mp3playerai.ai;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory, columnar snapshot of the songs table used for scoring.
+ *
+ * Layout:
+ * - Song id = row index (0..size-1), stable for the lifetime of the snapshot
+ * - Six mood columns as byte[] (values 0-100)
+ * - Text columns (title/artist/genre/tags/filename) as int refs into one interned StringPool
+ *
+ * Loaded once from SQLite, after that scoring never touches a Cursor.
+ */
+public final class SongStore {
+    private static final String TAG = "SongStore";
+
+    // Mood column order (matches DB column order)
+    public static final int MOOD_HYPE = 0;
+    public static final int MOOD_AGGRESSIVE = 1;
+    public static final int MOOD_MELODIC = 2;
+    public static final int MOOD_ATMOSPHERIC = 3;
+    public static final int MOOD_CINEMATIC = 4;
+    public static final int MOOD_RHYTHMIC = 5;
+    public static final int MOOD_COUNT = 6;
+
+    public static final String[] MOOD_NAMES = {
+            "hype", "aggressive", "melodic", "atmospheric", "cinematic", "rhythmic"
+    };
+
+    public final int size;
+    public final String[] paths;
+    public final int[] years;
+
+    // moods[MOOD_X][songId]
+    public final byte[][] moods;
+
+    // Refs into strings
+    public final int[] titleRef;
+    public final int[] artistRef;
+    public final int[] genreRef;
+    public final int[] tagsRef;
+    public final int[] filenameRef;
+
+    public final StringPool strings;
+
+    private final Map<String, Integer> idByPath;
+
+    private SongStore(int size, String[] paths, int[] years, byte[][] moods,
+                      int[] titleRef, int[] artistRef, int[] genreRef, int[] tagsRef, int[] filenameRef,
+                      StringPool strings, Map<String, Integer> idByPath) {
+        this.size = size;
+        this.paths = paths;
+        this.years = years;
+        this.moods = moods;
+        this.titleRef = titleRef;
+        this.artistRef = artistRef;
+        this.genreRef = genreRef;
+        this.tagsRef = tagsRef;
+        this.filenameRef = filenameRef;
+        this.strings = strings;
+        this.idByPath = idByPath;
+    }
+
+    /**
+     * Read the whole songs table once into columns.
+     */
+    public static SongStore load(SQLiteDatabase db) {
+        long start = System.currentTimeMillis();
+
+        int capacity = 1024;
+        try (Cursor c = db.rawQuery("SELECT COUNT(*) FROM " + DBUtils.TABLE_SONGS, null)) {
+            if (c.moveToFirst()) capacity = Math.max(1, c.getInt(0));
+        } catch (Exception e) {
+            Log.e(TAG, "COUNT(*) failed", e);
+        }
+
+        Builder b = new Builder(capacity);
+
+        try (Cursor cursor = db.rawQuery(
+                "SELECT path, title, artist, genre, tags, year, " +
+                        "hype, aggressive, melodic, atmospheric, cinematic, rhythmic, filename " +
+                        "FROM " + DBUtils.TABLE_SONGS,
+                null
+        )) {
+            int[] moodVals = new int[MOOD_COUNT];
+            while (cursor.moveToNext()) {
+                String path = cursor.getString(0);
+                if (path == null) continue;
+
+                for (int m = 0; m < MOOD_COUNT; m++) moodVals[m] = cursor.getInt(6 + m);
+
+                b.add(path,
+                        cursor.getString(1),
+                        cursor.getString(2),
+                        cursor.getString(3),
+                        cursor.getString(4),
+                        cursor.getInt(5),
+                        moodVals,
+                        cursor.getString(12));
+            }
+        }
+
+        SongStore store = b.build();
+        Log.d(TAG, "Loaded " + store.size + " songs (" + store.strings.size() + " unique strings) in " +
+                (System.currentTimeMillis() - start) + "ms");
+        return store;
+    }
+
+    /**
+     * @return song id for a path, or -1 if not in the store
+     */
+    public int idOf(String path) {
+        if (path == null) return -1;
+        Integer id = idByPath.get(path);
+        return (id != null) ? id : -1;
+    }
+
+    /**
+     * Cheap identity of this snapshot (size + ordered paths), used to validate
+     * files derived from it (e.g. the ANN index).
+     */
+    public long fingerprint() {
+        long h = 1125899906842597L + size;
+        for (int i = 0; i < size; i++) h = 31 * h + paths[i].hashCode();
+        return h;
+    }
+
+    public int mood(int mood, int id) {
+        return moods[mood][id];
+    }
+
+    public String title(int id) { return strings.get(titleRef[id]); }
+    public String artist(int id) { return strings.get(artistRef[id]); }
+    public String genre(int id) { return strings.get(genreRef[id]); }
+    public String tags(int id) { return strings.get(tagsRef[id]); }
+    public String filename(int id) { return strings.get(filenameRef[id]); }
+
+    /**
+     * Map a QueryProfile moods map to a dense target vector in MOOD_NAMES order (missing = 50).
+     */
+    public static int[] moodTargets(Map<String, Integer> moods) {
+        int[] out = new int[MOOD_COUNT];
+        for (int m = 0; m < MOOD_COUNT; m++) {
+            Integer v = (moods != null) ? moods.get(MOOD_NAMES[m]) : null;
+            out[m] = (v != null) ? v : 50;
+        }
+        return out;
+    }
+
+    // ===== STRING POOL =====
+
+    /**
+     * Interned pool of distinct strings. Each entry also keeps its lowercase form,
+     * so keyword matching never lowercases per row.
+     * Ref 0 is always null/empty.
+     */
+    public static final class StringPool {
+        private final String[] values;
+        private final String[] lower;
+
+        private StringPool(String[] values, String[] lower) {
+            this.values = values;
+            this.lower = lower;
+        }
+
+        public String get(int ref) {
+            return values[ref];
+        }
+
+        public String lower(int ref) {
+            return lower[ref];
+        }
+
+        public int size() {
+            return values.length;
+        }
+    }
+
+    // ===== BUILDER =====
+
+    /**
+     * Also used by JVM tests to build synthetic libraries.
+     */
+    static final class Builder {
+        private int size = 0;
+        private String[] paths;
+        private int[] years;
+        private byte[][] moods;
+        private int[] titleRef, artistRef, genreRef, tagsRef, filenameRef;
+
+        private final Map<String, Integer> poolIndex = new HashMap<>();
+        private final List<String> poolValues = new ArrayList<>();
+        private final Map<String, Integer> idByPath;
+
+        Builder(int capacity) {
+            paths = new String[capacity];
+            years = new int[capacity];
+            moods = new byte[MOOD_COUNT][capacity];
+            titleRef = new int[capacity];
+            artistRef = new int[capacity];
+            genreRef = new int[capacity];
+            tagsRef = new int[capacity];
+            filenameRef = new int[capacity];
+            idByPath = new HashMap<>(capacity * 2);
+
+            poolValues.add(null); // ref 0 = missing
+        }
+
+        void add(String path, String title, String artist, String genre, String tags,
+                 int year, int[] moodVals, String filename) {
+            if (idByPath.containsKey(path)) return;
+            if (size == paths.length) grow();
+
+            int id = size++;
+            paths[id] = path;
+            years[id] = year;
+            for (int m = 0; m < MOOD_COUNT; m++) {
+                moods[m][id] = (byte) Math.max(0, Math.min(100, moodVals[m]));
+            }
+            titleRef[id] = intern(title);
+            artistRef[id] = intern(artist);
+            genreRef[id] = intern(genre);
+            tagsRef[id] = intern(tags);
+            filenameRef[id] = intern(filename);
+
+            idByPath.put(path, id);
+        }
+
+        private int intern(String s) {
+            if (s == null || s.isEmpty()) return 0;
+            Integer ref = poolIndex.get(s);
+            if (ref != null) return ref;
+            int r = poolValues.size();
+            poolValues.add(s);
+            poolIndex.put(s, r);
+            return r;
+        }
+
+        private void grow() {
+            int cap = paths.length * 2;
+            paths = Arrays.copyOf(paths, cap);
+            years = Arrays.copyOf(years, cap);
+            for (int m = 0; m < MOOD_COUNT; m++) moods[m] = Arrays.copyOf(moods[m], cap);
+            titleRef = Arrays.copyOf(titleRef, cap);
+            artistRef = Arrays.copyOf(artistRef, cap);
+            genreRef = Arrays.copyOf(genreRef, cap);
+            tagsRef = Arrays.copyOf(tagsRef, cap);
+            filenameRef = Arrays.copyOf(filenameRef, cap);
+        }
+
+        SongStore build() {
+            String[] values = poolValues.toArray(new String[0]);
+            String[] lower = new String[values.length];
+            lower[0] = "";
+            for (int i = 1; i < values.length; i++) lower[i] = values[i].toLowerCase();
+
+            return new SongStore(size, paths, years, moods,
+                    titleRef, artistRef, genreRef, tagsRef, filenameRef,
+                    new StringPool(values, lower), idByPath);
+        }
+    }
+}
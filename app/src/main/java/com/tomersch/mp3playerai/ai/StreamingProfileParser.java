@@ -0,0 +1,150 @@
+package com.tomersch.mp3playerai.ai;
+
+/**
+ * Incremental parser for the query-parse schema {"genres":[...],"moods":{...}} (see
+ * LocalLlmInterpreter.QUERY_GRAMMAR), fed token pieces as the LLM produces them.
+ *
+ * - A field counts once it is closed: the genres array on ']', a mood on the ',' or '}' after its number
+ * - snapshot() is usable at any point: moods not seen yet stay neutral (50)
+ * - isComplete() as soon as every field is in, so generation can be cancelled before the closing braces
+ *
+ * Tolerates whitespace and unknown keys; not a general JSON parser. Not thread-safe (one per generation).
+ */
+public final class StreamingProfileParser {
+    private static final int OUTSIDE = 0, IN_GENRES = 1, IN_MOODS = 2;
+
+    private final QueryProfile profile = new QueryProfile();
+    private final boolean[] moodSeen = new boolean[SongStore.MOOD_COUNT];
+    private int moodsSeen;
+    private boolean genresDone;
+    private int fields;
+
+    private final StringBuilder string = new StringBuilder();
+    private final StringBuilder number = new StringBuilder();
+    private boolean inString;
+    private boolean escaped;
+    private boolean expectingValue;   // after ':'
+    private String key;               // last key of the current object
+    private int section = OUTSIDE;
+
+    public void feed(CharSequence piece) {
+        for (int i = 0; i < piece.length(); i++) feed(piece.charAt(i));
+    }
+
+    /**
+     * Fields closed so far (genres array + one per mood).
+     */
+    public int fieldCount() {
+        return fields;
+    }
+
+    public boolean hasGenres() {
+        return genresDone;
+    }
+
+    public boolean isComplete() {
+        return genresDone && moodsSeen == SongStore.MOOD_COUNT;
+    }
+
+    /**
+     * Profile from the fields closed so far (a copy).
+     */
+    public QueryProfile snapshot() {
+        return profile.copy();
+    }
+
+    private void feed(char c) {
+        if (inString) {
+            if (escaped) {
+                string.append(c);
+                escaped = false;
+            } else if (c == '\\') {
+                escaped = true;
+            } else if (c == '"') {
+                inString = false;
+                onString(string.toString());
+            } else {
+                string.append(c);
+            }
+            return;
+        }
+
+        switch (c) {
+            case '"':
+                inString = true;
+                string.setLength(0);
+                break;
+            case ':':
+                expectingValue = true;
+                break;
+            case '[':
+                if (expectingValue && "genres".equals(key)) section = IN_GENRES;
+                expectingValue = false;
+                break;
+            case ']':
+                if (section == IN_GENRES) {
+                    section = OUTSIDE;
+                    genresDone = true;
+                    fields++;
+                }
+                break;
+            case '{':
+                if (expectingValue && "moods".equals(key)) section = IN_MOODS;
+                expectingValue = false;
+                key = null;
+                break;
+            case ',':
+                flushNumber();
+                break;
+            case '}':
+                flushNumber();
+                if (section == IN_MOODS) section = OUTSIDE;
+                break;
+            default:
+                if (expectingValue && (Character.isDigit(c) || c == '-' || c == '.')) number.append(c);
+                break;
+        }
+    }
+
+    private void onString(String s) {
+        if (section == IN_GENRES) {
+            String genre = s.trim().toLowerCase();
+            if (!genre.isEmpty() && !profile.genres.contains(genre)) {
+                profile.genres.add(genre);
+                profile.keywords.add(genre);
+            }
+        } else if (expectingValue) {
+            expectingValue = false;   // string value of a field we don't use
+        } else {
+            key = s;
+        }
+    }
+
+    private void flushNumber() {
+        if (number.length() > 0 && section == IN_MOODS && key != null) {
+            int m = moodIndex(key);
+            if (m >= 0) {
+                try {
+                    int value = Math.round(Float.parseFloat(number.toString()));
+                    profile.moods.put(SongStore.MOOD_NAMES[m], Math.max(0, Math.min(100, value)));
+                    if (!moodSeen[m]) {
+                        moodSeen[m] = true;
+                        moodsSeen++;
+                        fields++;
+                    }
+                } catch (NumberFormatException ignored) {
+                    // "-" or "." alone: keep the neutral default
+                }
+            }
+        }
+        number.setLength(0);
+        expectingValue = false;
+    }
+
+    private static int moodIndex(String name) {
+        for (int m = 0; m < SongStore.MOOD_COUNT; m++) {
+            if (SongStore.MOOD_NAMES[m].equals(name)) return m;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,113 @@
+package com.tomersch.mp3playerai.ai;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.function.BooleanSupplier;
+
+/**
+ * llama.cpp thread counts for this phone: defaults from the CPU topology, then a one-time
+ * per-model benchmark (see LlmLifecycleManager).
+ *
+ * - Prompt evaluation (batch) and single-token generation are timed separately, they often peak
+ *   at different counts: generation is memory-bound, batches are compute-bound
+ * - On big.LITTLE SoCs threads on the slow cores hold the fast ones back, so the default is the
+ *   number of big cores
+ * - Never more than cores - 1 threads: one core stays free for the playback thread
+ */
+final class ThreadCalibration {
+    private static final String TAG = "ThreadCalibration";
+    private static final int PROMPT_TOKENS = 64;
+    private static final int GEN_TOKENS = 16;
+    private static final float MIN_GAIN = 0.95f;    // more threads must be >5% faster to win
+    private static final float BIG_CORE_FREQ = 0.8f; // of the fastest core's max frequency
+
+    private ThreadCalibration() {}
+
+    /**
+     * Threads to use before (or without) calibration.
+     */
+    static int defaultThreads() {
+        return Math.min(bigCoreCount(), maxThreads());
+    }
+
+    /**
+     * Benchmark every candidate count on the loaded model: {generation threads, batch threads}.
+     * Takes a few seconds; clears the KV cache and leaves the last benchmarked thread count set
+     * (caller applies its threads and re-warms its prompt). Checks abort between runs and
+     * returns null once it is true.
+     */
+    static int[] calibrate(LocalLlmInterpreter llm, BooleanSupplier abort) {
+        List<Integer> candidates = candidates();
+        int bestGen = defaultThreads(), bestBatch = bestGen;
+        long bestGenUs = Long.MAX_VALUE, bestBatchUs = Long.MAX_VALUE;
+
+        // First run pays for page faults / cold caches: not counted
+        llm.benchmarkThreads(candidates.get(0), PROMPT_TOKENS, GEN_TOKENS);
+
+        for (int threads : candidates) {
+            if (abort.getAsBoolean()) return null;
+            long[] us = llm.benchmarkThreads(threads, PROMPT_TOKENS, GEN_TOKENS);
+            if (us == null) continue;
+            Log.d(TAG, threads + " threads: prompt " + us[0] / 1000 + "ms, " + GEN_TOKENS + " tokens " +
+                    us[1] / 1000 + "ms");
+
+            // Ascending order: a higher count only wins by a clear margin
+            if (us[0] < bestBatchUs * MIN_GAIN) {
+                bestBatchUs = us[0];
+                bestBatch = threads;
+            }
+            if (us[1] < bestGenUs * MIN_GAIN) {
+                bestGenUs = us[1];
+                bestGen = threads;
+            }
+        }
+        return new int[]{bestGen, bestBatch};
+    }
+
+    private static List<Integer> candidates() {
+        int max = maxThreads();
+        TreeSet<Integer> counts = new TreeSet<>();
+        for (int t : new int[]{1, 2, 3, 4, 6, 8, bigCoreCount()}) {
+            if (t <= max) counts.add(t);
+        }
+        return new ArrayList<>(counts);
+    }
+
+    private static int maxThreads() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    }
+
+    /**
+     * Cores within BIG_CORE_FREQ of the fastest one (all cores if cpufreq is unreadable).
+     */
+    static int bigCoreCount() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        long[] freq = new long[cores];
+        long max = 0;
+        for (int i = 0; i < cores; i++) {
+            freq[i] = readLong("/sys/devices/system/cpu/cpu" + i + "/cpufreq/cpuinfo_max_freq");
+            max = Math.max(max, freq[i]);
+        }
+        if (max <= 0) return cores;
+
+        int big = 0;
+        for (long f : freq) {
+            if (f >= max * BIG_CORE_FREQ) big++;
+        }
+        return Math.max(1, big);
+    }
+
+    private static long readLong(String path) {
+        try (BufferedReader r = new BufferedReader(new FileReader(path))) {
+            String line = r.readLine();
+            return line == null ? -1 : Long.parseLong(line.trim());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.tomersch.mp3playerai.ai;
+
+/**
+ * Bounded top-K selection over (score, songId) pairs.
+ *
+ * Keeps at most {@code capacity} entries in a primitive min-heap (root = worst kept entry),
+ * so selecting the best K of N costs O(N log K) with no per-row allocation.
+ *
+ * Ordering is total: higher score wins, equal scores prefer the lower song id.
+ * That makes the result independent of the order entries were offered in.
+ */
+public final class TopKSelector {
+    private final int capacity;
+    private final float[] scores;
+    private final int[] ids;
+    private int size = 0;
+
+    public TopKSelector(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.scores = new float[this.capacity];
+        this.ids = new int[this.capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return true if the entry was kept
+     */
+    public boolean offer(float score, int id) {
+        if (size < capacity) {
+            scores[size] = score;
+            ids[size] = id;
+            siftUp(size++);
+            return true;
+        }
+        // Full: replace root only if the new entry beats the worst kept one
+        if (!better(score, id, scores[0], ids[0])) return false;
+        scores[0] = score;
+        ids[0] = id;
+        siftDown(0, size);
+        return true;
+    }
+
+    /**
+     * Offer every entry of another selector (used to merge partial results).
+     */
+    public void addAll(TopKSelector other) {
+        for (int i = 0; i < other.size; i++) offer(other.scores[i], other.ids[i]);
+    }
+
+    /**
+     * Sort kept entries best-first, in place. After this the heap is no longer valid for offer().
+     */
+    public void sortDescending() {
+        // Heap sort on a min-heap: moving the worst to the end leaves best-first order
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+    }
+
+    public float scoreAt(int i) {
+        return scores[i];
+    }
+
+    public int idAt(int i) {
+        return ids[i];
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    // ===== HEAP =====
+
+    /** a beats b */
+    private static boolean better(float sa, int ia, float sb, int ib) {
+        if (sa != sb) return sa > sb;
+        return ia < ib;
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            // min-heap: parent must be worse than (or equal to) the child
+            if (!better(scores[parent], ids[parent], scores[i], ids[i])) break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i, int n) {
+        while (true) {
+            int l = 2 * i + 1;
+            if (l >= n) break;
+            int r = l + 1;
+            int worst = l;
+            if (r < n && better(scores[l], ids[l], scores[r], ids[r])) worst = r;
+            if (!better(scores[i], ids[i], scores[worst], ids[worst])) break;
+            swap(i, worst);
+            i = worst;
+        }
+    }
+
+    private void swap(int a, int b) {
+        float s = scores[a];
+        scores[a] = scores[b];
+        scores[b] = s;
+        int t = ids[a];
+        ids[a] = ids[b];
+        ids[b] = t;
+    }
+}
@@ -0,0 +1,41 @@
+package com.tomersch.mp3playerai.ai;
+
+import java.util.Random;
+
+/**
+ * Weighted random sampling without replacement (Efraimidis–Spirakis).
+ *
+ * Each item gets one random key from its weight, and the sample is the k items with the
+ * largest keys. Weights are used once, so the cost is O(n log k) instead of a full
+ * re-weighting per pick.
+ *
+ * Keys are computed in log space (Gumbel form): key = logWeight - ln(-ln(u)).
+ * That equals ln(u)/w ordering but does not overflow for exp(score/temp) weights.
+ */
+public final class WeightedSampler {
+    private WeightedSampler() {}
+
+    /**
+     * @param logWeights natural log of each item's weight
+     * @param count      items to draw
+     * @param rng        random source (seed it for reproducible picks)
+     * @return indices into logWeights, in draw order (same distribution as sequential picking)
+     */
+    public static int[] sample(float[] logWeights, int count, Random rng) {
+        int n = logWeights.length;
+        count = Math.min(count, n);
+        if (count <= 0) return new int[0];
+
+        TopKSelector top = new TopKSelector(count);
+        for (int i = 0; i < n; i++) {
+            double u = rng.nextDouble();
+            double key = logWeights[i] - Math.log(-Math.log(u));
+            top.offer((float) key, i);
+        }
+        top.sortDescending();
+
+        int[] out = new int[top.size()];
+        for (int i = 0; i < out.length; i++) out[i] = top.idAt(i);
+        return out;
+    }
+}
@@ -1,10 +1,10 @@
 package com.tomersch.mp3playerai.fragments;
 
 import android.content.Context;
-import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -24,7 +24,9 @@ import androidx.recyclerview.widget.RecyclerView;
 import com.google.android.material.card.MaterialCardView;
 import com.tomersch.mp3playerai.R;
 import com.tomersch.mp3playerai.adapters.SongAdapter;
+import com.tomersch.mp3playerai.ai.AIEngineProvider;
 import com.tomersch.mp3playerai.ai.AIRecommendationEngine;
+import com.tomersch.mp3playerai.ai.QueryProfile;
 import com.tomersch.mp3playerai.models.Playlist;
 import com.tomersch.mp3playerai.models.Song;
 import com.tomersch.mp3playerai.player.LibraryProvider;
@@ -35,13 +37,13 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.stream.Collectors;
 
 public class AIFragment extends Fragment {
 
+    private static final int NEUTRAL_MOOD = 50;  // slider value that expresses no preference
+
     private EditText etTextQuery;
     private SeekBar seekBarHype, seekBarAggressive, seekBarMelodic;
     private SeekBar seekBarAtmospheric, seekBarCinematic, seekBarRhythmic;
@@ -56,7 +58,6 @@ public class AIFragment extends Fragment {
 
     private Button chipEnergetic, chipChill, chipFocus, chipWorkout, chipParty;
 
-    private AIRecommendationEngine aiEngine;
     private SongAdapter songAdapter;
     private List<Song> generatedSongs;
 
@@ -100,8 +101,8 @@ public class AIFragment extends Fragment {
         initializeViews(view);
         setupListeners();
 
-        // Initialize AI engine
-        aiEngine = new AIRecommendationEngine(getContext(),"");
+        // Shared AI engine (initialized in the background at app start)
+        AIEngineProvider.get(requireContext());
 
         // Setup RecyclerView
         generatedSongs = new ArrayList<>();
@@ -207,12 +208,12 @@ public class AIFragment extends Fragment {
     }
 
     private void resetSliders() {
-        seekBarHype.setProgress(50);
-        seekBarAggressive.setProgress(50);
-        seekBarMelodic.setProgress(50);
-        seekBarAtmospheric.setProgress(50);
-        seekBarCinematic.setProgress(50);
-        seekBarRhythmic.setProgress(50);
+        seekBarHype.setProgress(NEUTRAL_MOOD);
+        seekBarAggressive.setProgress(NEUTRAL_MOOD);
+        seekBarMelodic.setProgress(NEUTRAL_MOOD);
+        seekBarAtmospheric.setProgress(NEUTRAL_MOOD);
+        seekBarCinematic.setProgress(NEUTRAL_MOOD);
+        seekBarRhythmic.setProgress(NEUTRAL_MOOD);
     }
 
     private void applyPreset(String preset) {
@@ -268,12 +269,6 @@ public class AIFragment extends Fragment {
     private void generatePlaylist() {
         String query = etTextQuery.getText().toString().trim();
 
-        if (query.isEmpty()) {
-            Toast.makeText(getContext(), "Please describe what you want to hear or select a preset",
-                    Toast.LENGTH_SHORT).show();
-            return;
-        }
-
         // Collect mood preferences
         Map<String, Integer> moodPrefs = new HashMap<>();
         moodPrefs.put("hype", seekBarHype.getProgress());
@@ -283,33 +278,59 @@ public class AIFragment extends Fragment {
         moodPrefs.put("cinematic", seekBarCinematic.getProgress());
         moodPrefs.put("rhythmic", seekBarRhythmic.getProgress());
 
+        boolean slidersMoved = false;
+        for (int value : moodPrefs.values()) {
+            if (value != NEUTRAL_MOOD) slidersMoved = true;
+        }
+
+        if (query.isEmpty() && !slidersMoved) {
+            Toast.makeText(getContext(), "Please describe what you want to hear or select a preset",
+                    Toast.LENGTH_SHORT).show();
+            return;
+        }
+
         int songCount = Math.max(5, seekBarSongCount.getProgress());
 
         // Show loading
         progressBar.setVisibility(View.VISIBLE);
         cardResults.setVisibility(View.GONE);
         btnGenerate.setEnabled(false);
+        final CharSequence generateLabel = btnGenerate.getText();
 
         // Generate recommendations in background thread
         final String finalQuery = query;
         final Map<String, Integer> finalMoodPrefs = moodPrefs;
         final int finalSongCount = songCount;
 
+        final Context appContext = requireContext().getApplicationContext();
+
         executorService.execute(() -> {
             try {
-                // Get recommendations (runs in background)
-                Set<AIRecommendationEngine.RecommendedSong> recommendations;
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-                    recommendations = aiEngine.getRecommendations(finalQuery,  finalSongCount, new HashSet<>()).stream().collect(Collectors.toSet());
-                }else {
-                    recommendations = null;
-                    return;
+                // Wait for the shared engine if it is still initializing (background thread)
+                AIRecommendationEngine aiEngine = AIEngineProvider.get(appContext).get();
+
+                // Text -> profile (rules, LLM only if needed; no text = neutral profile), then the
+                // sliders: any slider moved off neutral is an explicit target and wins over the text
+                // LLM answers stream in: show what was understood so far, stop if the user left
+                QueryProfile profile = finalQuery.isEmpty() ? new QueryProfile() :
+                        aiEngine.parseQuery(finalQuery, partial -> {
+                            String understood = partial.genres.isEmpty() ? "moods" : TextUtils.join(", ", partial.genres);
+                            mainHandler.post(() -> btnGenerate.setText("🎧 " + understood + "…"));
+                            return isAdded();
+                        });
+                for (Map.Entry<String, Integer> mood : finalMoodPrefs.entrySet()) {
+                    if (mood.getValue() != NEUTRAL_MOOD) profile.moods.put(mood.getKey(), mood.getValue());
                 }
 
+                // Get recommendations (runs in background)
+                List<AIRecommendationEngine.RecommendedSong> recommendations =
+                        aiEngine.getRecommendations(profile, finalSongCount, new HashSet<>());
+
                 // Update UI on main thread
                 mainHandler.post(() -> {
                     progressBar.setVisibility(View.GONE);
                     btnGenerate.setEnabled(true);
+                    btnGenerate.setText(generateLabel);
 
                     if (recommendations == null || recommendations.isEmpty()) {
                         Toast.makeText(getContext(),
@@ -344,6 +365,7 @@ public class AIFragment extends Fragment {
                 mainHandler.post(() -> {
                     progressBar.setVisibility(View.GONE);
                     btnGenerate.setEnabled(true);
+                    btnGenerate.setText(generateLabel);
                     Toast.makeText(getContext(),
                             "Error generating playlist: " + e.getMessage(),
                             Toast.LENGTH_LONG).show();
@@ -390,9 +412,6 @@ public class AIFragment extends Fragment {
     @Override
     public void onDestroy() {
         super.onDestroy();
-        if (aiEngine != null) {
-            aiEngine.close();
-        }
         if (executorService != null) {
             executorService.shutdown();
         }
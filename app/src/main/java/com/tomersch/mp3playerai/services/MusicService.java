@@ -1,32 +1,31 @@
 package com.tomersch.mp3playerai.services;
 
-import static android.os.Build.VERSION.*;
-import static android.os.Build.VERSION_CODES.*;
-
 import android.app.Service;
 import android.content.Intent;
 import android.media.MediaPlayer;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 
+import com.tomersch.mp3playerai.ai.AIEngineProvider;
 import com.tomersch.mp3playerai.ai.AIRecommendationEngine;
 import com.tomersch.mp3playerai.ai.AIRecommendationEngine.RecommendedSong;
+import com.tomersch.mp3playerai.ai.SessionCentroid;
 import com.tomersch.mp3playerai.models.Song;
-import com.tomersch.mp3playerai.utils.ManualFileScanner;
+import com.tomersch.mp3playerai.utils.LibraryRepository;
 import com.tomersch.mp3playerai.utils.UserActivityLogger;
 
-import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 
 /**
  * Enhanced Music Service with AI Continue Mode
@@ -38,8 +37,6 @@ public class MusicService extends Service {
     private UserActivityLogger activityLogger;
     private Set<String> sessionPlayedPaths = new HashSet<>();
     private Set<String> sessionSkippedPaths = new HashSet<>();
-    private Map<String, Integer> sessionGenreCount = new HashMap<>();
-    private Map<String, Integer> sessionMoodScores = new HashMap<>();
     private List<String> recentlyAddedPaths = new ArrayList<>();
     public Song getPendingSong() {
         return pendingSong;
@@ -74,8 +71,27 @@ public class MusicService extends Service {
     private int aiContinueThreshold = 5;  // Add more songs when less than 5 remaining
     private Set<String> allAvailableSongs;  // All songs in library
 
+    // 🤖 AI Continue prefetch: the next batch is computed off the main thread and parked in the
+    // buffer, so a track change only appends songs instead of running a recommendation pass
+    private static final int AI_CONTINUE_BATCH = 10;
+    private final ExecutorService aiPrefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "ai-continue-prefetch");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final List<Song> aiPrefetchBuffer = new ArrayList<>();  // main thread only
+    private boolean aiPrefetchInFlight = false;
+    private int aiPrefetchGeneration = 0;  // bumped when the queue is replaced, stale batches are dropped
+
+    // 🤖 What this session has been playing (moods + embeddings), AI Continue ranks against it
+    private final SessionCentroid sessionCentroid = new SessionCentroid();
+
     // 🧠 AI Learning
-    private AIRecommendationEngine aiEngine;
+    private volatile AIRecommendationEngine aiEngine;  // null until the shared engine is ready
+    // Learning events from before the engine was ready, in the order they happened (main thread only)
+    private final List<Consumer<AIRecommendationEngine>> pendingEngineActions = new ArrayList<>();
+    private boolean engineFailed = false;
     private String currentSongPath;
     private long songStartTime;
     private boolean songWasCompleted = false;
@@ -114,11 +130,19 @@ public class MusicService extends Service {
         sessionPlayedPaths = new HashSet<>();
         recentlyAddedPaths = new ArrayList<>();
         allAvailableSongs = new HashSet<>();
-        sessionGenreCount = new HashMap<>();
-        sessionMoodScores = new HashMap<>();
-        aiEngine = new AIRecommendationEngine(this,"");
-        Log.d(TAG, "🧠 AI Learning initialized!");
-        Log.d(TAG, aiEngine.getLearningStats());
+        // Shared engine initializes in the background; playback does not wait for it.
+        // Startup events are replayed in order, on the main thread, before any later one
+        AIEngineProvider.whenReady(this, engine -> {
+            aiEngine = engine;
+            for (Consumer<AIRecommendationEngine> action : pendingEngineActions) action.accept(engine);
+            Log.d(TAG, "🧠 AI Learning initialized! (" + pendingEngineActions.size() + " startup events)");
+            pendingEngineActions.clear();
+        }, error -> {
+            engineFailed = true;
+            Log.e(TAG, "🧠 AI engine init failed, dropping " + pendingEngineActions.size() +
+                    " learning events; learning is off for this session", error);
+            pendingEngineActions.clear();
+        });
 
         mediaPlayer.setOnPreparedListener(mp -> {
             try {
@@ -146,13 +170,19 @@ public class MusicService extends Service {
             // 🧠 LEARNING: Song completed!
             songWasCompleted = true;
 
-            if (currentSongPath != null && aiEngine != null) {
+            long songDuration = mediaPlayer.getDuration();
+            // Unknown duration: no ratio, so nothing is recorded (same as trackSkipIfNeeded)
+            if (currentSongPath != null && songDuration > 0) {
                 long playDuration = System.currentTimeMillis() - songStartTime;
-                long songDuration = mediaPlayer.getDuration();
 
                 // Only count as "completed" if played at least 80%
                 if (playDuration >= songDuration * 0.8) {
-                    aiEngine.recordSongCompleted(currentSongPath);
+                    String completedPath = currentSongPath;
+                    float listenRatio = Math.min(1f, (float) playDuration / songDuration);
+                    withEngine(engine -> {
+                        engine.recordSongCompleted(completedPath);
+                        engine.recordSessionListen(sessionCentroid, completedPath, listenRatio, false);
+                    });
                     Log.d(TAG, "🧠 Learning: Song completed - " + getCurrentSong().getTitle());
                 }
             }
@@ -191,8 +221,7 @@ public class MusicService extends Service {
                 break;
 
             case AI_CONTINUE:
-                // 🧠 AI Continue mode!
-                checkAndAddAISongs();
+                // 🧠 AI Continue mode! (playNext tops up the queue from the prefetch buffer)
                 playNext();
                 break;
 
@@ -208,88 +237,192 @@ public class MusicService extends Service {
                 break;
         }
     }
+    /**
+     * Run a learning action now if the shared engine is ready, otherwise once it is
+     * (events during startup are buffered in order, not dropped). Main thread.
+     */
+    private void withEngine(Consumer<AIRecommendationEngine> action) {
+        AIRecommendationEngine engine = aiEngine;
+        if (engine != null) action.accept(engine);
+        else if (!engineFailed) pendingEngineActions.add(action);
+    }
+
     public void notifyTheAi()
     {
         checkAndAddAISongs();
     }
     /**
-     * 🧠 AI CONTINUE: Check if we need to add more songs
+     * 🧠 AI CONTINUE: Top up the queue from the prefetch buffer when it is running low.
+     * No recommendation pass runs here (it is called from the completion listener), the next
+     * batch is computed in the background and appended when it lands.
      */
     private void checkAndAddAISongs() {
         if (playbackMode != PlaybackMode.AI_CONTINUE) {
             return;
         }
 
+        int remaining = playlist.size() - currentIndex - 1;
+
+        if (remaining > aiContinueThreshold) {
+            // Still have enough songs
+            return;
+        }
+
+        Log.d(TAG, "🤖 AI Continue: Only " + remaining + " songs left, adding more!");
+
+        if (!aiPrefetchBuffer.isEmpty()) {
+            appendPrefetchedSongs();
+        }
+
+        // Refill the buffer for the next crossing (or fill it now if it was empty)
+        prefetchAISongs();
+    }
+
+    /**
+     * 🤖 Start computing the next AI Continue batch on the prefetch thread, unless one is
+     * already buffered or in flight.
+     */
+    private void prefetchAISongs() {
+        if (aiPrefetchInFlight || !aiPrefetchBuffer.isEmpty()) {
+            return;
+        }
+
         if (allAvailableSongs.isEmpty()) {
             Log.w(TAG, "🤖 AI Continue: No songs available in library");
             return;
         }
 
-        int remaining = playlist.size() - currentIndex - 1;
+        AIRecommendationEngine aiEngine = this.aiEngine;
+        if (aiEngine == null) {
+            Log.w(TAG, "🤖 AI Continue: AI engine still initializing");
+            return;
+        }
 
-        if (remaining > aiContinueThreshold) {
-            // Still have enough songs
+        // Snapshot main-thread state; the prefetch thread never touches the queue or session sets
+        Set<String> currentQueuePaths = new HashSet<>();
+        for (Song s : playlist) {
+            currentQueuePaths.add(s.getPath());
+        }
+        Set<String> recentlyAddedSet = new HashSet<>(recentlyAddedPaths);
+        Set<String> sessionSkippedSet = new HashSet<>(sessionSkippedPaths);
+        Set<String> sessionPlayedSet = new HashSet<>(sessionPlayedPaths);
+        String seedPath = currentSongPath;
+        int generation = aiPrefetchGeneration;
+
+        aiPrefetchInFlight = true;
+        aiPrefetchExecutor.execute(() -> {
+            long start = System.currentTimeMillis();
+            List<Song> batch;
+            try {
+                batch = buildAIBatch(aiEngine, seedPath, currentQueuePaths,
+                        recentlyAddedSet, sessionSkippedSet, sessionPlayedSet);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "🤖 AI Continue: Prefetch failed", e);
+                batch = Collections.emptyList();
+            }
+            Log.d(TAG, "🤖 AI Continue: Prefetched " + batch.size() + " songs in "
+                    + (System.currentTimeMillis() - start) + "ms");
+
+            List<Song> ready = batch;
+            mainHandler.post(() -> onAIBatchReady(generation, ready));
+        });
+    }
+
+    /**
+     * 🤖 Prefetch result, on the main thread. Appended right away if the queue crossed the
+     * threshold while it was computing, otherwise parked until it does.
+     */
+    private void onAIBatchReady(int generation, List<Song> batch) {
+        aiPrefetchInFlight = false;
+
+        // Queue was replaced or the mode changed meanwhile: drop it and start over for the current queue
+        if (generation != aiPrefetchGeneration) {
+            checkAndAddAISongs();
             return;
         }
 
+        aiPrefetchBuffer.addAll(batch);
+
+        if (!batch.isEmpty()) {
+            checkAndAddAISongs();
+        }
+    }
+
+    /**
+     * 🤖 Move the buffered batch into the queue. Songs that reached the queue some other way
+     * while buffered are dropped.
+     */
+    private void appendPrefetchedSongs() {
+        Set<String> currentQueuePaths = new HashSet<>();
+        for (Song s : playlist) {
+            currentQueuePaths.add(s.getPath());
+        }
+
+        int addedCount = 0;
+        for (Song song : aiPrefetchBuffer) {
+            if (!currentQueuePaths.add(song.getPath())) continue;
+
+            playlist.add(song);
+            recentlyAddedPaths.add(song.getPath());
+            addedCount++;
+        }
+        aiPrefetchBuffer.clear();
+
+        // Maintain recently added list (keep last 50 songs)
+        while (recentlyAddedPaths.size() > 50) {
+            recentlyAddedPaths.remove(0);
+        }
+
         Log.d(TAG, "════════════════════════════════════════");
-        Log.d(TAG, "🤖 AI Continue: Only " + remaining + " songs left, adding more!");
+        Log.d(TAG, "✅ AI CONTINUE SUCCESS!");
+        Log.d(TAG, "   Added " + addedCount + " new songs");
+        Log.d(TAG, "   Queue size: " + playlist.size() + " songs");
+        Log.d(TAG, "   Remaining: " + (playlist.size() - currentIndex - 1) + " songs");
+        Log.d(TAG, "   Recently added history: " + recentlyAddedPaths.size() + " songs");
         Log.d(TAG, "════════════════════════════════════════");
 
-        // Analyze current session
-        String topGenres = analyzeSessionGenres();
-        Map<String, Integer> moodScores = analyzeSessionMoods();
+        // Notify UI
+        if (addedCount > 0) {
+            notifyPlaylistUpdated();
+        }
+    }
 
-        Log.d(TAG, "🤖 AI Continue: Session analysis:");
-        Log.d(TAG, "   Top genres: " + topGenres);
-        Log.d(TAG, "   Mood scores: " + moodScores);
+    /**
+     * 🤖 Recommend and filter the next AI Continue batch. Runs on the prefetch thread and only
+     * reads the snapshots it is given.
+     */
+    private List<Song> buildAIBatch(AIRecommendationEngine aiEngine,
+                                    String seedPath,
+                                    Set<String> currentQueuePaths,
+                                    Set<String> recentlyAddedSet,
+                                    Set<String> sessionSkippedSet,
+                                    Set<String> sessionPlayedSet) {
+        Log.d(TAG, "🤖 AI Continue: Session - " + sessionCentroid);
 
         // Get recommendations (request 3x more for filtering)
-        int targetCount = 10;
+        int targetCount = AI_CONTINUE_BATCH;
         Log.d(TAG, "🤖 AI Continue: Requesting " + (targetCount * 3) + " recommendations for filtering");
         Set<String> excluded = new HashSet<>();
 
         // current queue
-                for (Song s : playlist) excluded.add(s.getPath());
+        excluded.addAll(currentQueuePaths);
 
         // session behavior
-                excluded.addAll(sessionPlayedPaths);
-                excluded.addAll(sessionSkippedPaths);
+        excluded.addAll(sessionPlayedSet);
+        excluded.addAll(sessionSkippedSet);
 
         // “do not repeat what AI just added”
-                excluded.addAll(recentlyAddedPaths);
+        excluded.addAll(recentlyAddedSet);
 
-        Set<RecommendedSong> recommendations = null;
-        if (SDK_INT >= N) {
-            recommendations = aiEngine.getRecommendations(
-                    "",0,excluded).stream().limit(targetCount * 3).collect(Collectors.toSet());
-        }
+        // Ranked against the session centroid (the current song seeds an empty session)
+        List<RecommendedSong> recommendations =
+                aiEngine.continueSession(sessionCentroid, seedPath, targetCount * 3, excluded);
         if (recommendations.isEmpty()) {
             Log.w(TAG, "🤖 AI Continue: No recommendations received from AI engine!");
-            return;
         }
 
         Log.d(TAG, "🤖 AI Continue: Received " + recommendations.size() + " initial recommendations");
 
-        // ═══════════════════════════════════════════════════════════════
-        // BUILD FILTER SETS FOR EFFICIENT LOOKUP
-        // ═══════════════════════════════════════════════════════════════
-
-        // Set 1: Songs currently in queue
-        Set<String> currentQueuePaths = new HashSet<>();
-        for (Song s : playlist) {
-            currentQueuePaths.add(s.getPath());
-        }
-
-        // Set 2: Songs recently added (to prevent near-duplicates)
-        Set<String> recentlyAddedSet = new HashSet<>(recentlyAddedPaths);
-
-        // Set 3: Songs user skipped in this session (they don't like them!)
-        Set<String> sessionSkippedSet = new HashSet<>(sessionSkippedPaths);
-
-        // Set 4: Songs already played in this session (avoid immediate repeats)
-        Set<String> sessionPlayedSet = new HashSet<>(sessionPlayedPaths);
-
         Log.d(TAG, "🔍 Filter sets built:");
         Log.d(TAG, "   Current queue: " + currentQueuePaths.size() + " songs");
         Log.d(TAG, "   Recently added: " + recentlyAddedSet.size() + " songs");
@@ -366,176 +499,21 @@ public class MusicService extends Service {
             Log.w(TAG, "⚠️ All recommendations were filtered out!");
             Log.w(TAG, "   Using fallback: Adding random unique songs");
 
-            List<Song> allSongs = new ArrayList<>();
-            for (String s:allAvailableSongs) {
-                Song song = ManualFileScanner.createSongFromFile(new File(s));
-                allSongs.add(song);
-            }
-            Collections.shuffle(allSongs);
+            // Only check for queue and recent duplicates in fallback
+            Set<String> fallbackExcluded = new HashSet<>(currentQueuePaths);
+            fallbackExcluded.addAll(recentlyAddedSet);
 
+            // Sampled from the in-memory library: no tag reads, no full shuffle
             int fallbackTarget = Math.min(targetCount, 5);
-            for (Song song : allSongs) {
-                String path = song.getPath();
-
-                // Only check for queue and recent duplicates in fallback
-                if (!currentQueuePaths.contains(path) &&
-                        !recentlyAddedSet.contains(path)) {
-                    filteredSongs.add(song);
-                    Log.d(TAG, "   🎲 [FALLBACK] " + song.getTitle());
-
-                    if (filteredSongs.size() >= fallbackTarget) {
-                        break;
-                    }
-                }
+            for (Song song : LibraryRepository.getInstance(this).sampleSongs(fallbackTarget, fallbackExcluded)) {
+                filteredSongs.add(song);
+                Log.d(TAG, "   🎲 [FALLBACK] " + song.getTitle());
             }
 
             Log.d(TAG, "🎲 Fallback added: " + filteredSongs.size() + " random songs");
         }
 
-        // ═══════════════════════════════════════════════════════════════
-        // ADD FILTERED SONGS TO QUEUE
-        // ═══════════════════════════════════════════════════════════════
-
-        int addedCount = 0;
-        for (Song song : filteredSongs) {
-            playlist.add(song);
-            recentlyAddedPaths.add(song.getPath());
-            addedCount++;
-        }
-
-        // Maintain recently added list (keep last 50 songs)
-        while (recentlyAddedPaths.size() > 50) {
-            recentlyAddedPaths.remove(0);
-        }
-
-        Log.d(TAG, "════════════════════════════════════════");
-        Log.d(TAG, "✅ AI CONTINUE SUCCESS!");
-        Log.d(TAG, "   Added " + addedCount + " new songs");
-        Log.d(TAG, "   Queue size: " + playlist.size() + " songs");
-        Log.d(TAG, "   Remaining: " + (playlist.size() - currentIndex - 1) + " songs");
-        Log.d(TAG, "   Recently added history: " + recentlyAddedPaths.size() + " songs");
-        Log.d(TAG, "════════════════════════════════════════");
-
-        // Notify UI
-        notifyPlaylistUpdated();
-    }
-
-    /**
-     * 🧠 AI CONTINUE: Add AI-recommended songs to queue
-     */
-    private void addAISongs(int count) {
-        if (aiEngine == null) {
-            Log.e(TAG, "AI Engine not available");
-            return;
-        }
-
-        Log.d(TAG, "🤖 AI Continue: Generating " + count + " new songs...");
-
-        // Analyze current session to understand what user likes
-        Map<String, Integer> sessionMoodPrefs = analyzeSessionMoods();
-        String textQuery = analyzeSessionGenres();
-
-        // Get AI recommendations
-        List<RecommendedSong> recommendations =
-                aiEngine.getRecommendations(textQuery,  count * 3,new TreeSet<>());  // Get 3x to filter
-
-        if (recommendations.isEmpty()) {
-            Log.w(TAG, "🤖 AI Continue: No recommendations available");
-            return;
-        }
-
-        // Filter out already played songs (this session and recently added)
-        List<Song> newSongs = new ArrayList<>();
-        for (RecommendedSong rec : recommendations) {
-            if (newSongs.size() >= count) break;
-
-            // Skip if already in current playlist
-            boolean alreadyInPlaylist = false;
-            for (Song s : playlist) {
-                if (s.getPath().equals(rec.path)) {
-                    alreadyInPlaylist = true;
-                    break;
-                }
-            }
-            if (alreadyInPlaylist) continue;
-
-            // Skip if played this session
-            if (sessionPlayedPaths.contains(rec.path)) continue;
-
-            // Skip if recently added by AI
-            if (recentlyAddedPaths.contains(rec.path)) continue;
-
-            // Add to queue!
-            Song newSong = rec.toSong();
-            newSongs.add(newSong);
-            recentlyAddedPaths.add(rec.path);
-
-            Log.d(TAG, "🤖 AI Continue: Adding - " + rec.title + " (score: " +
-                    String.format("%.2f", rec.score) + ")");
-        }
-
-        // Add songs to playlist
-        playlist.addAll(newSongs);
-
-        // Keep recently added list manageable (last 50)
-        if (recentlyAddedPaths.size() > 50) {
-            recentlyAddedPaths = recentlyAddedPaths.subList(
-                    recentlyAddedPaths.size() - 50,
-                    recentlyAddedPaths.size()
-            );
-        }
-
-        Log.d(TAG, "🤖 AI Continue: Added " + newSongs.size() + " songs! Queue now has " +
-                playlist.size() + " songs");
-
-        notifyPlaylistUpdated();
-    }
-
-    /**
-     * 🧠 Analyze session moods from played songs
-     */
-    private Map<String, Integer> analyzeSessionMoods() {
-        // Start with user's learned mood preferences
-        Map<String, Integer> moods = new HashMap<>();
-        moods.put("hype", 50);
-        moods.put("aggressive", 50);
-        moods.put("melodic", 50);
-        moods.put("atmospheric", 50);
-        moods.put("cinematic", 50);
-        moods.put("rhythmic", 50);
-
-        // Adjust based on session mood scores (weighted by completion)
-        if (!sessionMoodScores.isEmpty()) {
-            moods.putAll(sessionMoodScores);
-        }
-
-        Log.d(TAG, "🤖 AI Continue: Session moods - " + moods);
-        return moods;
-    }
-
-    /**
-     * 🧠 Analyze session genres from played songs
-     */
-    private String analyzeSessionGenres() {
-        if (sessionGenreCount.isEmpty()) {
-            return "";
-        }
-
-        // Find top 3 genres
-        List<Map.Entry<String, Integer>> sortedGenres = new ArrayList<>(sessionGenreCount.entrySet());
-        if (SDK_INT >= N) {
-            sortedGenres.sort((a, b) -> b.getValue() - a.getValue());
-        }
-
-        StringBuilder query = new StringBuilder();
-        for (int i = 0; i < Math.min(3, sortedGenres.size()); i++) {
-            if (i > 0) query.append(" ");
-            query.append(sortedGenres.get(i).getKey());
-        }
-
-        String result = query.toString();
-        Log.d(TAG, "🤖 AI Continue: Session genres - " + result);
-        return result;
+        return filteredSongs;
     }
 
     /**
@@ -545,13 +523,6 @@ public class MusicService extends Service {
         if (song == null) return;
 
         sessionPlayedPaths.add(song.getPath());
-
-        // Track genre (would need to get from DB)
-        // For now, placeholder logic
-        // String genre = song.getGenre();
-        // if (genre != null && !genre.isEmpty()) {
-        //     sessionGenreCount.put(genre, sessionGenreCount.getOrDefault(genre, 0) + 1);
-        // }
     }
 
     /**
@@ -586,12 +557,8 @@ public class MusicService extends Service {
         songWasCompleted = false;
         isReplaying = false;
 
-        if (aiEngine != null) {
-            if (SDK_INT >= N) {
-                aiEngine.recordSongPlayed(song.getPath());
-            }
-            Log.d(TAG, "🧠 Learning: Song played - " + song.getTitle());
-        }
+        withEngine(engine -> engine.recordSongPlayed(song.getPath()));
+        Log.d(TAG, "🧠 Learning: Song played - " + song.getTitle());
 
         // 🤖 AI Continue: Track for analysis
         trackSongForAIAnalysis(song);
@@ -661,15 +628,23 @@ public class MusicService extends Service {
             long playDuration = System.currentTimeMillis() - songStartTime;
             long songDuration = mediaPlayer.getDuration();
 
+            // Unknown duration (not prepared, stream): no ratio, so neither a skip nor a listen
+            if (songDuration <= 0) return;
+
+            String path = currentSongPath;
+            float listenRatio = Math.min(1f, (float) playDuration / songDuration);
+
             // Consider it a skip if played less than 30% of the song
             if (playDuration < songDuration * 0.3) {
                 sessionSkippedPaths.add(currentSongPath);
-                if (aiEngine != null) {
-                    if (SDK_INT >= N) {
-                        aiEngine.recordSongSkipped(currentSongPath);
-                    }
-                    Log.d(TAG, "🧠 Learning: Song skipped - " + getCurrentSong().getTitle());
-                }
+                withEngine(engine -> {
+                    engine.recordSongSkipped(path);
+                    engine.recordSessionListen(sessionCentroid, path, listenRatio, true);
+                });
+                Log.d(TAG, "🧠 Learning: Song skipped - " + getCurrentSong().getTitle());
+            } else {
+                // Moved on after a real listen: still counts for the session, by how much was heard
+                withEngine(engine -> engine.recordSessionListen(sessionCentroid, path, listenRatio, false));
             }
         }
     }
@@ -716,8 +691,9 @@ public class MusicService extends Service {
      */
     public void replay() {
         // 🧠 LEARNING: User wants to replay - they love it!
-        if (currentSongPath != null && aiEngine != null) {
-            aiEngine.recordSongReplayed(currentSongPath);
+        if (currentSongPath != null) {
+            String replayedPath = currentSongPath;
+            withEngine(engine -> engine.recordSongReplayed(replayedPath));
             Log.d(TAG, "🧠 Learning: Song replayed - " + getCurrentSong().getTitle());
         }
 
@@ -734,8 +710,9 @@ public class MusicService extends Service {
         currentIndex = 0;
         sessionPlayedPaths.clear();
         recentlyAddedPaths.clear();
-        sessionGenreCount.clear();
-        sessionMoodScores.clear();
+        aiPrefetchBuffer.clear();
+        aiPrefetchGeneration++;
+        sessionCentroid.reset();
 
         Log.d(TAG, "Playlist set: " + songs.size() + " songs");
     }
@@ -762,6 +739,11 @@ public class MusicService extends Service {
 
         Log.d(TAG, "Playback mode: " + mode);
 
+        if (!aiContinueEnabled) {
+            aiPrefetchBuffer.clear();
+            aiPrefetchGeneration++;
+        }
+
         // Start AI Continue immediately if enabled and queue is low
         if (aiContinueEnabled) {
             checkAndAddAISongs();
@@ -926,8 +908,12 @@ public class MusicService extends Service {
             mediaPlayer = null;
         }
 
+        aiPrefetchExecutor.shutdownNow();
+        mainHandler.removeCallbacksAndMessages(null);
+
+        // Engine is shared process-wide: only persist, never close it here
         if (aiEngine != null) {
-            aiEngine.close();
+            aiEngine.getLearningManager().flush();
         }
 
         Log.d(TAG, "MusicService destroyed");
@@ -40,6 +40,7 @@ public class LibraryRepository {
     private final List<Song> allSongs = new ArrayList<>();
     private final Set<String> favoritePaths = new HashSet<>();
     private final List<Playlist> playlists = new ArrayList<>();
+    private final Random random = new Random();
 
     // --- STORAGE ---
     private final SharedPreferences prefs;
@@ -58,7 +59,7 @@ public class LibraryRepository {
        INITIALIZATION
        ============================================================ */
 
-    public void initSongs(List<Song> songs) {
+    public synchronized void initSongs(List<Song> songs) {
         allSongs.clear();
         songMap.clear();
 
@@ -83,6 +84,38 @@ public class LibraryRepository {
         return songMap.get(path);
     }
 
+    /**
+     * k random distinct songs whose paths are not in excludePaths, without copying or shuffling
+     * the library. Floyd's algorithm draws min(n, k + |excludePaths|) distinct indices, enough to
+     * still have k after dropping excluded ones, so the cost depends on k and the exclusions, not n.
+     * Safe to call off the main thread.
+     */
+    public synchronized List<Song> sampleSongs(int k, Set<String> excludePaths) {
+        int n = allSongs.size();
+        if (k <= 0 || n == 0) return new ArrayList<>();
+
+        int excluded = excludePaths != null ? excludePaths.size() : 0;
+        int m = (int) Math.min(n, (long) k + excluded);
+
+        // Floyd: for j in [n-m, n) draw t in [0, j], take t unless already taken, else j
+        Set<Integer> picked = new HashSet<>(m * 2);
+        for (int j = n - m; j < n; j++) {
+            int t = random.nextInt(j + 1);
+            picked.add(picked.contains(t) ? j : t);
+        }
+
+        List<Song> result = new ArrayList<>(m);
+        for (int index : picked) {
+            Song song = allSongs.get(index);
+            if (excludePaths != null && excludePaths.contains(song.getPath())) continue;
+            result.add(song);
+        }
+
+        // Set order is not random: shuffle the survivors (at most k + |excludePaths|) before cutting
+        Collections.shuffle(result, random);
+        return result.size() > k ? new ArrayList<>(result.subList(0, k)) : result;
+    }
+
     public List<Song> getSongsInFolder(String folderPath) {
         List<Song> result = new ArrayList<>();
         for (Song song : allSongs) {
@@ -0,0 +1,159 @@
+package com.tomersch.mp3playerai.ai;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Recovery of the learning journal: torn tails after a crash, checkpoint + replay of later journals.
+ */
+public class LearningJournalTest {
+
+    @Test
+    public void tornLastRecord_isDroppedAndTruncated() throws IOException {
+        File filesDir = Files.createTempDirectory("journal").toFile();
+        try {
+            LearningJournal journal = open(filesDir, new ArrayList<>());
+            journal.append(LearningJournal.PLAYED, "/music/a.mp3", 1000L, 0f);
+            journal.append(LearningJournal.SKIPPED, "/music/b.mp3", 2000L, 0f);
+            journal.append(LearningJournal.SET_SCORE, "/music/a.mp3", 3000L, 0.5f);
+            journal.flush();
+            journal.close();
+
+            // Crash in the middle of the last event record
+            File file = journalFile(filesDir, 0);
+            long complete = file.length();
+            chop(file, 5);
+
+            List<String> events = new ArrayList<>();
+            journal = open(filesDir, events);
+            assertEquals(Arrays.asList("1 /music/a.mp3 1000", "2 /music/b.mp3 2000"), events);
+            assertEquals(complete - 17, file.length());   // one event record
+
+            // Appends after recovery continue from a clean record boundary
+            journal.append(LearningJournal.COMPLETED, "/music/b.mp3", 4000L, 0f);
+            journal.flush();
+            journal.close();
+
+            events.clear();
+            open(filesDir, events).close();
+            assertEquals(Arrays.asList("1 /music/a.mp3 1000", "2 /music/b.mp3 2000", "3 /music/b.mp3 4000"),
+                    events);
+        } finally {
+            delete(filesDir);
+        }
+    }
+
+    @Test
+    public void tornPathDefinition_dropsOnlyTheTail() throws IOException {
+        File filesDir = Files.createTempDirectory("journal").toFile();
+        try {
+            LearningJournal journal = open(filesDir, new ArrayList<>());
+            journal.append(LearningJournal.PLAYED, "/music/a.mp3", 1000L, 0f);
+            journal.flush();
+            long firstEvent = journalFile(filesDir, 0).length();
+            journal.append(LearningJournal.PLAYED, "/music/a-much-longer-path.mp3", 2000L, 0f);
+            journal.flush();
+            journal.close();
+
+            // Torn inside the new path's DEFINE_PATH record (the event after it never made it)
+            File file = journalFile(filesDir, 0);
+            chop(file, 17 + 10);
+
+            List<String> events = new ArrayList<>();
+            open(filesDir, events).close();
+            assertEquals(Arrays.asList("1 /music/a.mp3 1000"), events);
+            assertEquals(firstEvent, file.length());
+        } finally {
+            delete(filesDir);
+        }
+    }
+
+    @Test
+    public void checkpoint_thenReplaysLaterJournals() throws IOException {
+        File filesDir = Files.createTempDirectory("journal").toFile();
+        try {
+            LearningJournal journal = open(filesDir, new ArrayList<>());
+            journal.append(LearningJournal.PLAYED, "/music/a.mp3", 1000L, 0f);
+            journal.flush();
+
+            LearningJournal.State state = newState();
+            state.songScores.put("/music/a.mp3", 0.25f);
+            state.moodPreferences.put("hype", 0.1f);
+            state.playHistory.add("/music/a.mp3");
+            state.lastPlayedAt.put("/music/a.mp3", 1000L);
+            state.playedSongs.add("/music/a.mp3");
+
+            LearningJournal.Checkpoint cp = journal.rotate(state);
+            journal.append(LearningJournal.SKIPPED, "/music/b.mp3", 2000L, 0f);
+            journal.flush();
+
+            // A journal the checkpoint covers whose delete is interrupted must not be replayed again
+            byte[] covered = Files.readAllBytes(journalFile(filesDir, 0).toPath());
+            journal.writeCheckpoint(cp);
+            assertFalse(journalFile(filesDir, 0).exists());
+            assertFalse(new File(journalFile(filesDir, 0).getParentFile(), "learning.ckpt.tmp").exists());
+            Files.write(journalFile(filesDir, 0).toPath(), covered);
+
+            journal.append(LearningJournal.RECOMMENDED, "/music/c.mp3", 3000L, 0f);
+            journal.flush();
+            journal.close();
+
+            LearningJournal.State restored = newState();
+            List<String> events = new ArrayList<>();
+            LearningJournal reopened = new LearningJournal(filesDir);
+            reopened.open(restored, (type, path, timestamp, value) -> events.add(type + " " + path + " " + timestamp));
+            reopened.close();
+
+            assertEquals(0.25f, restored.songScores.get("/music/a.mp3"), 0f);
+            assertEquals(0.1f, restored.moodPreferences.get("hype"), 0f);
+            assertEquals(Arrays.asList("/music/a.mp3"), restored.playHistory);
+            assertEquals(1000L, (long) restored.lastPlayedAt.get("/music/a.mp3"));
+            assertTrue(restored.playedSongs.contains("/music/a.mp3"));
+
+            assertEquals(Arrays.asList("2 /music/b.mp3 2000", "5 /music/c.mp3 3000"), events);
+            assertFalse(journalFile(filesDir, 0).exists());
+        } finally {
+            delete(filesDir);
+        }
+    }
+
+    private static LearningJournal open(File filesDir, List<String> events) throws IOException {
+        LearningJournal journal = new LearningJournal(filesDir);
+        journal.open(newState(), (type, path, timestamp, value) -> events.add(type + " " + path + " " + timestamp));
+        return journal;
+    }
+
+    private static LearningJournal.State newState() {
+        return new LearningJournal.State(new HashMap<>(), new HashMap<>(), new ArrayList<>(), new ArrayList<>(),
+                new HashMap<>(), new HashMap<>(), new HashSet<>());
+    }
+
+    private static File journalFile(File filesDir, int seq) {
+        return new File(new File(filesDir, "ai_learning"), "journal." + seq);
+    }
+
+    private static void chop(File file, int bytes) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - bytes);
+        }
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) delete(c);
+        }
+        f.delete();
+    }
+}
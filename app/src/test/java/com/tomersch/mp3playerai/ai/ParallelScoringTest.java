@@ -0,0 +1,83 @@
+package com.tomersch.mp3playerai.ai;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Parallel (ForkJoin) scoring must keep exactly the pool the single-threaded scan keeps.
+ */
+public class ParallelScoringTest {
+    private static final int SONGS = 20000;
+
+    @Test
+    public void forkJoinPool_matchesSequential() {
+        // Few distinct mood values: thousands of exact score ties across chunk boundaries
+        SongStore store = syntheticStore(SONGS, 3, 42);
+        QueryProfile profile = new QueryProfile();
+        profile.moods.put("hype", 80);
+        profile.moods.put("melodic", 30);
+
+        for (int capacity : new int[]{1, 50, 500, SONGS}) {
+            AIRecommendationEngine.ScoreContext ctx = new AIRecommendationEngine.ScoreContext(
+                    store, new BitSet(store.size), profile, null, null, new LearningView(store));
+
+            TopKSelector sequential = new TopKSelector(capacity);
+            int n = AIRecommendationEngine.scoreRange(ctx, 0, store.size, sequential);
+
+            // Odd chunk size so splits never line up with equal-score runs
+            AIRecommendationEngine.ScoreTask task =
+                    new AIRecommendationEngine.ScoreTask(ctx, 0, store.size, capacity, 257);
+            ForkJoinPool.commonPool().invoke(task);
+
+            assertEquals(n, task.survivors);
+            assertSamePool(sequential, task.top);
+        }
+    }
+
+    @Test
+    public void addAll_tiesPreferLowerId() {
+        TopKSelector a = new TopKSelector(3);
+        TopKSelector b = new TopKSelector(3);
+        a.offer(1f, 7);
+        a.offer(1f, 5);
+        a.offer(2f, 9);
+        b.offer(1f, 2);
+        b.offer(1f, 8);
+        b.offer(1f, 3);
+
+        a.addAll(b);
+        a.sortDescending();
+
+        assertEquals(3, a.size());
+        assertEquals(9, a.idAt(0));
+        assertEquals(2, a.idAt(1));
+        assertEquals(3, a.idAt(2));
+    }
+
+    private static void assertSamePool(TopKSelector expected, TopKSelector actual) {
+        expected.sortDescending();
+        actual.sortDescending();
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals("id at " + i, expected.idAt(i), actual.idAt(i));
+            assertEquals("score at " + i, expected.scoreAt(i), actual.scoreAt(i), 0f);
+        }
+    }
+
+    private static SongStore syntheticStore(int size, int levels, long seed) {
+        Random random = new Random(seed);
+        SongStore.Builder b = new SongStore.Builder(size);
+        int[] moods = new int[SongStore.MOOD_COUNT];
+        for (int i = 0; i < size; i++) {
+            for (int m = 0; m < SongStore.MOOD_COUNT; m++) moods[m] = random.nextInt(levels) * 50;
+            b.add("/music/song" + i + ".mp3", "Song " + i, "Artist " + (i % 97), "rock", null,
+                    2000 + i % 20, moods, "song" + i + ".mp3");
+        }
+        return b.build();
+    }
+}